@@ -1,4 +1,21 @@
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.*;
+import java.util.stream.*;
+import java.util.zip.CRC32C;
 
 // Interface that will be extended to all subclasses to display the details
 interface Displayable 
@@ -48,14 +65,20 @@ abstract class Person implements Displayable
     @Override
     public String toString() 
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Name: ").append(name).append("\n");
-        sb.append("Age: ").append(age).append("\n");
-        sb.append("Gender: ").append(gender).append("\n");
-        sb.append("Disability: ").append(isDisability ? "Yes" : "No").append("\n");
+        StringBuilder sb = new StringBuilder(128);
+        appendTo(sb);
         return sb.toString();
     }
 
+    // Writes the same text as toString() onto the end of sb, so a listing can put many people into one buffer
+    public void appendTo(StringBuilder sb) 
+    {
+        sb.append("Name: ").append(getName()).append('\n');
+        sb.append("Age: ").append(getAge()).append('\n');
+        sb.append("Gender: ").append(getGender()).append('\n');
+        sb.append("Disability: ").append(isDisability() ? "Yes" : "No").append('\n');
+    }
+
     // Mentioning the abstract method but will be defined in subclass
     @Override
     public abstract void displayDetails();
@@ -80,13 +103,12 @@ class Passenger extends Person
         return passportNumber;
     }
 
-    // This block converts all the details stored in individual variables to ONE string, under the name sb i.e StringBuilder
+    // Adds the passport number to what Person writes
     @Override
-    public String toString() 
+    public void appendTo(StringBuilder sb) 
     {
-        StringBuilder sb = new StringBuilder(super.toString());
-        sb.append("Passport Number: ").append(passportNumber).append("\n");
-        return sb.toString();
+        super.appendTo(sb);
+        sb.append("Passport Number: ").append(getPassportNumber()).append('\n');
     }
 
     // Displaying the passenger details 
@@ -97,295 +119,7788 @@ class Passenger extends Person
     }
 }
 
-// interface that will be extended by Flight, along with Displayable
-interface FlightOperations 
+// PassengerValidator checks a passenger's details the same way for the menu, the server and bulk uploads
+// Each text field is checked in one pass over its characters against a lookup table of the ASCII characters it may contain,
+// stopping at the first one that isn't allowed. Letters outside ASCII are allowed in names, so accented names still pass
+final class PassengerValidator 
 {
-    // the bookTicket function checks if there are seats available
-    // if seats are available, it returns true
-    boolean bookTicket(Passenger passenger);
-}
+    public static final int MAX_AGE = 110;
+    public static final int MAX_NAME_LENGTH = 64;
+    public static final int MAX_PASSPORT_LENGTH = 20;
+    private static final String[] GENDERS = { "Male", "Female", "Other" };
+    // Allowed ASCII characters, by character code
+    private static final boolean[] NAME_CHARS = new boolean[128];
+    private static final boolean[] PASSPORT_CHARS = new boolean[128];
 
-// Flight is an abstract class that implements the mentioned interfaces
-abstract class Flight implements Displayable, FlightOperations 
-{
-    // Declaring all the parameters that define a flight
-    private String flightNumber;
-    private String source;
-    private String destination;
-    private String departureTime;
-    private String arrivalTime;
-    private int totalSeats;
-    private double fare;
-    // This is an Array list that stores objects of class type Passenger under the variable name passengers
-    private ArrayList<Passenger> passengers;
+    static
+    {
+        for (char c = 'A'; c <= 'Z'; c++)
+        {
+            NAME_CHARS[c] = NAME_CHARS[c + ('a' - 'A')] = true;
+            PASSPORT_CHARS[c] = PASSPORT_CHARS[c + ('a' - 'A')] = true;
+        }
+        for (char c = '0'; c <= '9'; c++)
+        {
+            PASSPORT_CHARS[c] = true;
+        }
+        // Names can have more than one part, and parts like O'Neil, Smith-Jones or St. John
+        NAME_CHARS[' '] = NAME_CHARS['\''] = NAME_CHARS['-'] = NAME_CHARS['.'] = true;
+    }
 
-    // Constructor for Flight
-    public Flight(String flightNumber, String source, String destination, String departureTime, String arrivalTime, int totalSeats, double fare) 
+    private PassengerValidator() 
     {
-        this.flightNumber = flightNumber;
-        this.source = source;
-        this.destination = destination;
-        this.departureTime = departureTime;
-        this.arrivalTime = arrivalTime;
-        this.totalSeats = totalSeats;
-        this.fare = fare;
-        this.passengers = new ArrayList<>();
     }
 
-    // Getters for Flight
-    public String getFlightNumber() 
+    // Letters, and spaces, apostrophes, hyphens and dots after the first letter. No digits
+    public static boolean isValidName(String name) 
     {
-        return flightNumber;
+        int length = name.length();
+        if (length == 0 || length > MAX_NAME_LENGTH || !Character.isLetter(name.charAt(0)))
+        {
+            return false;
+        }
+        for (int i = 1; i < length; i++)
+        {
+            char c = name.charAt(i);
+            if (c < 128 ? !NAME_CHARS[c] : !Character.isLetter(c))
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public String getSource() 
+    public static boolean isValidAge(int age) 
     {
-        return source;
+        return age >= 0 && age <= MAX_AGE;
     }
 
-    public String getDestination() 
+    // Male, Female or Other, in any case
+    public static boolean isValidGender(String gender) 
     {
-        return destination;
+        for (String valid : GENDERS)
+        {
+            if (valid.equalsIgnoreCase(gender))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public String getDepartureTime() 
+    // Letters and digits only
+    public static boolean isValidPassport(String passportNumber) 
     {
-        return departureTime;
+        int length = passportNumber.length();
+        if (length == 0 || length > MAX_PASSPORT_LENGTH)
+        {
+            return false;
+        }
+        for (int i = 0; i < length; i++)
+        {
+            char c = passportNumber.charAt(i);
+            if (c >= 128 || !PASSPORT_CHARS[c])
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public String getArrivalTime() 
+    // Returns what is wrong with the passenger (e.g "invalid name"), or null if nothing is
+    public static String check(Passenger passenger) 
     {
-        return arrivalTime;
+        if (!isValidName(passenger.getName()))
+        {
+            return "invalid name";
+        }
+        if (!isValidAge(passenger.getAge()))
+        {
+            return "invalid age";
+        }
+        if (!isValidGender(passenger.getGender()))
+        {
+            return "invalid gender";
+        }
+        if (!isValidPassport(passenger.getPassportNumber()))
+        {
+            return "invalid passport number";
+        }
+        return null;
     }
+}
 
-    public int getTotalSeats() 
+// PassengerStore keeps passengers off the Java heap, packed into 64 byte records in direct buffers, so millions of bookings
+// don't mean millions of Strings for the garbage collector to trace. Each record is:
+//   [name length][gender code][age << 1 | disability, 2 bytes][passport length][passport, 16 bytes][name, UTF-8, 43 bytes]
+// Genders are dictionary coded, there are only a handful of different ones. A passenger whose name, passport, age or gender
+// doesn't fit is kept on the heap as it is, marked by a name length of 255
+// Every booking gets a record of its own, which is freed when the booking is cancelled and handed to the next passenger added.
+// Before that the StoredPassenger is given a heap copy of the passenger, so anything still holding it (e.g. a listing made before
+// the cancellation) keeps reading the right details. The store only grows to the most passengers booked at once
+class PassengerStore 
+{
+    private static final int RECORD_SIZE = 64;
+    private static final int RECORDS_PER_CHUNK = 1 << 14;
+    private static final int PASSPORT_WIDTH = 16;
+    private static final int NAME_WIDTH = 43;
+    private static final int NAME_LENGTH = 0;
+    private static final int GENDER = 1;
+    private static final int AGE_AND_DISABILITY = 2;
+    private static final int PASSPORT_LENGTH = 4;
+    private static final int PASSPORT = 5;
+    private static final int NAME = PASSPORT + PASSPORT_WIDTH;
+    private static final int OVERFLOW = 255;
+    private static final int MAX_AGE = Short.MAX_VALUE >> 1;
+
+    // 1 MB chunks, added as the store fills up. The array is replaced (not the chunks) when it runs out of room
+    private volatile ByteBuffer[] chunks = new ByteBuffer[16];
+    // Records handed out so far, freed ones included
+    private AtomicInteger size = new AtomicInteger();
+    // Freed records waiting to be reused, guarded by this. freeCount is volatile so add can skip the lock when there are none
+    private int[] freeRecords = new int[64];
+    private volatile int freeCount;
+    // gender code -> gender, and back
+    private CopyOnWriteArrayList<String> genders = new CopyOnWriteArrayList<>();
+    private ConcurrentHashMap<String, Integer> genderCodes = new ConcurrentHashMap<>();
+    // Passengers that don't fit in a record, by record number
+    private ConcurrentHashMap<Integer, Passenger> overflow = new ConcurrentHashMap<>();
+
+    // Copies the passenger into the store and returns a view of its record to keep instead
+    // A passenger that is already stored (e.g. when a booking is changed) is copied too, so each booking owns its record
+    public Passenger add(Passenger passenger) 
     {
-        return totalSeats;
+        int record = freeCount > 0 ? reuse() : -1;
+        if (record < 0)
+        {
+            record = size.getAndIncrement();
+        }
+        ByteBuffer chunk = chunk(record);
+        int offset = (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        byte[] name = passenger.getName().getBytes(StandardCharsets.UTF_8);
+        String passport = passenger.getPassportNumber();
+        int gender = genderCode(passenger.getGender());
+        if (name.length > NAME_WIDTH || !fitsPassport(passport) || gender < 0 || passenger.getAge() < 0 || passenger.getAge() > MAX_AGE)
+        {
+            overflow.put(record, passenger);
+            chunk.put(offset + NAME_LENGTH, (byte) OVERFLOW);
+            return new StoredPassenger(this, record);
+        }
+        chunk.put(offset + NAME_LENGTH, (byte) name.length);
+        chunk.put(offset + GENDER, (byte) gender);
+        chunk.putShort(offset + AGE_AND_DISABILITY, (short) (passenger.getAge() << 1 | (passenger.isDisability() ? 1 : 0)));
+        chunk.put(offset + PASSPORT_LENGTH, (byte) passport.length());
+        for (int i = 0; i < passport.length(); i++)
+        {
+            chunk.put(offset + PASSPORT + i, (byte) passport.charAt(i));
+        }
+        chunk.put(offset + NAME, name);
+        return new StoredPassenger(this, record);
     }
 
-    public int getAvailableSeats() 
+    // Takes a freed record, or returns -1 if another thread got the last one first
+    private synchronized int reuse() 
     {
-        // passengers.size() gives number of objects i.e passengers in the arraylist. So subtracting it from totalSeats gives available seats 
-        return totalSeats - passengers.size();
+        if (freeCount == 0)
+        {
+            return -1;
+        }
+        freeCount--;
+        return freeRecords[freeCount];
     }
 
-    public double getFare() 
+    // Frees the passenger's record for the next passenger added, once its booking has been cancelled
+    // Does nothing for a passenger that isn't in this store or was already released
+    public void release(Passenger passenger) 
     {
-        return fare;
+        if (!(passenger instanceof StoredPassenger) || ((StoredPassenger) passenger).getStore() != this)
+        {
+            return;
+        }
+        StoredPassenger stored = (StoredPassenger) passenger;
+        if (!stored.detach())
+        {
+            return;
+        }
+        overflow.remove(stored.getRecord());
+        synchronized (this)
+        {
+            if (freeCount == freeRecords.length)
+            {
+                freeRecords = Arrays.copyOf(freeRecords, freeCount * 2);
+            }
+            freeRecords[freeCount] = stored.getRecord();
+            freeCount++;
+        }
     }
 
-    public ArrayList<Passenger> getPassengers() 
+    // Passports are stored one byte per character, so only short ASCII ones fit
+    private static boolean fitsPassport(String passport) 
     {
-        return passengers;
+        if (passport.length() > PASSPORT_WIDTH)
+        {
+            return false;
+        }
+        for (int i = 0; i < passport.length(); i++)
+        {
+            if (passport.charAt(i) > 127)
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
-    // Declaring the abstract method that will be defined in the appropriate subclass
-    @Override
-    public abstract void displayDetails();
-}
+    // Returns the code for the gender, or -1 if the dictionary is full
+    private int genderCode(String gender) 
+    {
+        Integer code = genderCodes.get(gender);
+        return code != null ? code : addGender(gender);
+    }
 
-// RegularFlight is a class that extends the superclass Flight
-class RegularFlight extends Flight 
-{
-    // Constructor for RegularFlight that takes all the variables from super class Flight
-    public RegularFlight(String flightNumber, String source, String destination, String departureTime, String arrivalTime, int totalSeats, double fare) 
+    private synchronized int addGender(String gender) 
     {
-        super(flightNumber, source, destination, departureTime, arrivalTime, totalSeats, fare);
+        Integer code = genderCodes.get(gender);
+        if (code != null)
+        {
+            return code;
+        }
+        if (genders.size() >= OVERFLOW)
+        {
+            return -1;
+        }
+        genders.add(gender);
+        genderCodes.put(gender, genders.size() - 1);
+        return genders.size() - 1;
     }
 
-    // Defining the display method for Regular Flight specifically
-    @Override
-    public void displayDetails() 
+    // The chunk that holds the record, allocated the first time a record in it is added
+    private ByteBuffer chunk(int record) 
     {
-        System.out.println("");
-        System.out.print("Flight Number: " + getFlightNumber());
-        System.out.print("  Source: " + getSource());
-        System.out.print("  Destination: " + getDestination());
-        System.out.print("  Departure Time: " + getDepartureTime());
-        System.out.print("  Arrival Time: " + getArrivalTime());
-        System.out.print("  Available Seats: " + getAvailableSeats());
-        System.out.print("  Fare: " + getFare());
-        System.out.print("");
+        int number = record / RECORDS_PER_CHUNK;
+        ByteBuffer[] current = chunks;
+        if (number < current.length && current[number] != null)
+        {
+            return current[number];
+        }
+        synchronized (this)
+        {
+            ByteBuffer[] grown = Arrays.copyOf(chunks, Math.max(chunks.length, number + 1) * (number < chunks.length ? 1 : 2));
+            if (grown[number] == null)
+            {
+                grown[number] = ByteBuffer.allocateDirect(RECORDS_PER_CHUNK * RECORD_SIZE);
+                chunks = grown;
+            }
+            return chunks[number];
+        }
     }
 
-    // Definition of the bookTicket function that checks if flights are available
-    @Override
-    public boolean bookTicket(Passenger passenger) 
+    // Readers for StoredPassenger. Only called for records that have been added, but the record can be freed and reused while it
+    // is being read, so they must not fail on whatever they find: StoredPassenger throws away anything read after its release
+    String getName(int record) 
     {
-        if (getAvailableSeats() > 0) 
+        ByteBuffer chunk = chunks[record / RECORDS_PER_CHUNK];
+        int offset = (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        int length = chunk.get(offset + NAME_LENGTH) & 0xFF;
+        if (length == OVERFLOW)
         {
-            getPassengers().add(passenger);
-            return true;
+            Passenger passenger = overflow.get(record);
+            return passenger == null ? null : passenger.getName();
         }
-        return false;
+        byte[] name = new byte[Math.min(length, NAME_WIDTH)];
+        chunk.get(offset + NAME, name);
+        return new String(name, StandardCharsets.UTF_8);
     }
-}
 
-// CharterFlight is a class that extends the superclass Flight
-class CharterFlight extends Flight 
-{
-    // CharterFlight will absorb all variables from super class Flight
-    // We declare additional variables for CharterFlight specifically
-    private String charterCompany;
+    int getAge(int record) 
+    {
+        ByteBuffer chunk = chunks[record / RECORDS_PER_CHUNK];
+        int offset = (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        if ((chunk.get(offset + NAME_LENGTH) & 0xFF) == OVERFLOW)
+        {
+            Passenger passenger = overflow.get(record);
+            return passenger == null ? 0 : passenger.getAge();
+        }
+        return chunk.getShort(offset + AGE_AND_DISABILITY) >> 1;
+    }
 
-    // Constructor for charter flight
-    public CharterFlight(String flightNumber, String source, String destination, String departureTime, String arrivalTime, int totalSeats, double fare, String charterCompany) 
+    boolean isDisability(int record) 
     {
-        super(flightNumber, source, destination, departureTime, arrivalTime, totalSeats, fare);
-        this.charterCompany = charterCompany;
+        ByteBuffer chunk = chunks[record / RECORDS_PER_CHUNK];
+        int offset = (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        if ((chunk.get(offset + NAME_LENGTH) & 0xFF) == OVERFLOW)
+        {
+            Passenger passenger = overflow.get(record);
+            return passenger != null && passenger.isDisability();
+        }
+        return (chunk.getShort(offset + AGE_AND_DISABILITY) & 1) != 0;
     }
 
-    // Getters
-    public String getCharterCompany() 
+    String getGender(int record) 
     {
-        return charterCompany;
+        ByteBuffer chunk = chunks[record / RECORDS_PER_CHUNK];
+        int offset = (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        if ((chunk.get(offset + NAME_LENGTH) & 0xFF) == OVERFLOW)
+        {
+            Passenger passenger = overflow.get(record);
+            return passenger == null ? null : passenger.getGender();
+        }
+        int code = chunk.get(offset + GENDER) & 0xFF;
+        return code < genders.size() ? genders.get(code) : null;
     }
 
-    // Defining the display method for Charter Flight specifically
-    @Override
-    public void displayDetails() 
+    String getPassportNumber(int record) 
     {
-        System.out.println("");
-        System.out.print("Flight Number: " + getFlightNumber());
-        System.out.print("  Source: " + getSource());
-        System.out.print("  Destination: " + getDestination());
-        System.out.print("  Departure Time: " + getDepartureTime());
-        System.out.print("  Arrival Time: " + getArrivalTime());
-        System.out.print("  Available Seats: " + getAvailableSeats());
-        System.out.print("  Fare: " + getFare());
-        System.out.print("  Company: " + getCharterCompany());
-        System.out.print("");
+        ByteBuffer chunk = chunks[record / RECORDS_PER_CHUNK];
+        int offset = (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        if ((chunk.get(offset + NAME_LENGTH) & 0xFF) == OVERFLOW)
+        {
+            Passenger passenger = overflow.get(record);
+            return passenger == null ? null : passenger.getPassportNumber();
+        }
+        byte[] passport = new byte[Math.min(chunk.get(offset + PASSPORT_LENGTH) & 0xFF, PASSPORT_WIDTH)];
+        chunk.get(offset + PASSPORT, passport);
+        return new String(passport, StandardCharsets.ISO_8859_1);
     }
 
-    // Definition of the bookTicket function that checks if flights are available
-    @Override
-    public boolean bookTicket(Passenger passenger) 
+    // Number of passengers stored, not counting freed records
+    public int size() 
+    {
+        return size.get() - freeCount;
+    }
+
+    // Bytes held outside the heap
+    public long getOffHeapBytes() 
     {
-        if (getAvailableSeats() > 0) 
+        long bytes = 0;
+        for (ByteBuffer chunk : chunks)
         {
-            getPassengers().add(passenger);
-            return true;
+            bytes += chunk == null ? 0 : chunk.capacity();
         }
-        return false;
+        return bytes;
     }
 }
 
-// Main method 
-public class Mark13
+// StoredPassenger is a Passenger whose details live in a PassengerStore record; it only holds the record number
+// Every getter reads the record, so it can be used anywhere a Passenger can, e.g displayDetails
+// Once the record is released the getters read a heap copy instead. A getter that raced with the release checks afterwards and
+// uses the copy, since the record may already hold somebody else
+class StoredPassenger extends Passenger 
 {
-    public static Scanner scanner = new Scanner(System.in);
-    public static ArrayList<Flight> flights = new ArrayList<>();
-    // private static boolean True;
+    private PassengerStore store;
+    private int record;
+    // The passenger copied out of the record just before it was freed
+    private volatile Passenger released;
 
-    public static void main(String [] args) 
+    // Constructor for StoredPassenger, the fields it inherits stay empty
+    public StoredPassenger(PassengerStore store, int record) 
     {
-        // Initializing the flights with the data
-        flights.add(new RegularFlight("AI101", "Delhi", "Mumbai", "08:00", "10:00", 150, 5000.00));
-        flights.add(new RegularFlight("AI102", "Mumbai", "Delhi", "10:30", "12:30", 150, 5000.00));
-        flights.add(new RegularFlight("AI103", "Delhi", "Kolkata", "13:00", "15:30", 120, 6000.00));
-        flights.add(new RegularFlight("AI104", "Kolkata", "Delhi", "16:00", "18:30", 120, 6000.00));
-        flights.add(new RegularFlight("AI105", "Mumbai", "Kolkata", "19:00", "21:30", 100, 7000.00));
-        flights.add(new RegularFlight("AI106", "Kolkata", "Mumbai", "22:00", "00:30", 100, 7000.00));
-        flights.add(new CharterFlight("CF101", "Chennai", "Pune", "09:00", "11:00", 50, 8000.00, "XYZ"));
-        flights.add(new CharterFlight("CF102", "Pune", "Chennai", "09:30", "11:30", 50, 8000.00, "ABC"));
+        super(null, 0, null, false, null);
+        this.store = store;
+        this.record = record;
+    }
 
-        // variable to stay in a menu-driven loop till exit
-        boolean running = true;
-        while (running) 
+    public PassengerStore getStore() 
+    {
+        return store;
+    }
+
+    int getRecord() 
+    {
+        return record;
+    }
+
+    // Copies the passenger out of the record so the store can free it. Returns false if that was already done
+    synchronized boolean detach() 
+    {
+        if (released != null)
         {
-            // Menu options
-            System.out.println("");
-            System.out.println("\n*** Airline Reservation System Menu ***");
-            System.out.println("1. View available flights");
-            System.out.println("2. Book a ticket");
-            System.out.println("3. Display all passengers");
-            System.out.println("4. Display ticket details");
-            System.out.println("5. Exit");
-            System.out.print("Enter your choice: ");
-            int choice = scanner.nextInt();
+            return false;
+        }
+        released = new Passenger(store.getName(record), store.getAge(record), store.getGender(record), store.isDisability(record),
+                store.getPassportNumber(record));
+        return true;
+    }
 
-            // Switch case for entered choice
-            switch (choice) 
+    // True if the record still belonged to this passenger after it was read. The fence keeps the reads of the record before
+    // the check, like StampedLock.validate
+    private boolean stillHeld() 
+    {
+        VarHandle.acquireFence();
+        return released == null;
+    }
+
+    @Override
+    public String getName() 
+    {
+        if (released == null)
+        {
+            String name = store.getName(record);
+            if (stillHeld())
             {
-                case 1:
-                    displayAvailableFlights();
-                    break;
-                case 2:
-                    bookTicket();
-                    break;
-                case 3:
-                    displayAllPassengers();
-                    break;
-                case 4:
-                    displayTicketDetails();
-                    break;
-                case 5:
-                    running = false;
-                    System.out.println("");
-                    System.out.println("Exiting the program. Thank you for using the Airline Reservation System :)");
-                    System.out.println("");
-                    break;
-                default:
-                    System.out.println("Invalid choice. Please select a valid option.");
+                return name;
             }
         }
+        return released.getName();
     }
 
-    // Displaying the flights initialised in the array list
-    private static void displayAvailableFlights() 
+    @Override
+    public int getAge() 
     {
-        System.out.println("\nAvailable flights:");
-        // this for loop means that in every iteration, it takes one instance from "flights" of class Type "Flight" and stores it as "flight" 
-        for (Flight flight : flights) 
+        if (released == null)
         {
-            // calls the display details function for flight details
-            flight.displayDetails();
+            int age = store.getAge(record);
+            if (stillHeld())
+            {
+                return age;
+            }
         }
+        return released.getAge();
     }
-    
-    //Method to book flight tickets
-    private static void bookTicket() 
-    {
-        // Before booking, it displays all available flights
-        displayAvailableFlights();
-        System.out.println("");
-        System.out.print("\nEnter flight number to book ticket: ");
-        String flightNumber = scanner.next();
-
-        //Checks if entered flight number exists in the the initialised flights array list
-        Flight selectedFlight = findFlightByNumber(flightNumber);
 
-        if (selectedFlight != null) 
+    @Override
+    public String getGender() 
+    {
+        if (released == null)
         {
-            //Error handling to check if passenger name entered is valid or not(Checks if entered string contains a number)
-            boolean correct_name = false;
-            String name = "";
-            while (correct_name == false)
-            {  
-            try
+            String gender = store.getGender(record);
+            if (stillHeld())
             {
-                System.out.print("Enter name: ");
-                name = scanner.next();
-                // verification acts like a count
-                // If even a single name is discovered, verification is set to 1
-                int verification1 = 0;
-                for (int i = 0; i<name.length(); i++)
-                {
-                    char x = name.charAt(i);
-                    if (x =='1' || x =='2' || x =='3' || x =='4' || 
-                        x =='5' || x =='6' || x =='7' || x =='8' || 
-                        x =='9')
+                return gender;
+            }
+        }
+        return released.getGender();
+    }
+
+    @Override
+    public boolean isDisability() 
+    {
+        if (released == null)
+        {
+            boolean disability = store.isDisability(record);
+            if (stillHeld())
+            {
+                return disability;
+            }
+        }
+        return released.isDisability();
+    }
+
+    @Override
+    public String getPassportNumber() 
+    {
+        if (released == null)
+        {
+            String passport = store.getPassportNumber(record);
+            if (stillHeld())
+            {
+                return passport;
+            }
+        }
+        return released.getPassportNumber();
+    }
+}
+
+// interface that will be extended by Flight, along with Displayable
+interface FlightOperations 
+{
+    // the bookTicket function checks if there are seats available
+    // if seats are available, it returns true
+    // it can be called from many threads at once, so implementations must never hand out more seats than the flight has
+    boolean bookTicket(Passenger passenger);
+
+    // books one particular seat (like "12C"), or any free seat if seatNumber is null
+    // returns the booking, or null if the seat is taken or does not exist (or is in a charter company's block)
+    // throws BookingConflictException if there is a BookingGuard and the passenger is already booked on this flight or one at the same time
+    Booking bookSeat(Passenger passenger, String seatNumber);
+
+    // books any free seat in the given class, or returns null if the class is full
+    Booking bookSeatInClass(Passenger passenger, SeatClass seatClass);
+
+    // books all the passengers or none of them
+    // returns the bookings in the same order as the passengers, or null if there aren't enough seats
+    List<Booking> bookTickets(List<Passenger> passengers);
+
+    // cancels a booking on this flight and gives its seat back
+    // returns false if the booking is not on this flight or was already cancelled
+    boolean cancelBooking(Booking booking);
+
+    // moves an existing booking (from this flight or another one) to this flight, in a particular seat or any seat if seatNumber is null
+    // the old booking is only cancelled once the new one is made, so a failed change leaves the passenger where they were
+    // returns the new booking, or null if it could not be made
+    Booking rebook(Booking booking, String seatNumber);
+}
+
+// The classes a seat can be sold in, from the front of the aircraft to the back, with what a seat in each costs as a percentage of the fare
+enum SeatClass 
+{
+    FIRST(400), BUSINESS(250), ECONOMY(100);
+
+    private final int farePercent;
+
+    SeatClass(int farePercent) 
+    {
+        this.farePercent = farePercent;
+    }
+
+    public int getFarePercent() 
+    {
+        return farePercent;
+    }
+
+    // The class with the given name (ignoring case), or null if there is none
+    public static SeatClass parse(String name) 
+    {
+        for (SeatClass seatClass : values())
+        {
+            if (seatClass.name().equalsIgnoreCase(name))
+            {
+                return seatClass;
+            }
+        }
+        return null;
+    }
+}
+
+// SeatMap keeps track of which seats on a flight are taken, one bit per seat
+// Seats are numbered row by row from the front, so seat 0 is 1A, seat 1 is 1B and so on
+// A 500 seat aircraft needs only 8 longs, and seats are claimed with compare-and-set so no lock is needed
+class SeatMap 
+{
+    // Letters used for the seats in a row. I is skipped like on real aircraft
+    private static final String SEAT_LETTERS = "ABCDEFGHJK";
+
+    private int totalSeats;
+    private int seatsPerRow;
+    // Rows 1..firstRows are first class, the next businessRows rows are business, the rest are economy
+    private int firstRows;
+    private int businessRows;
+    // One bit per seat, set when the seat is taken
+    private AtomicLongArray taken;
+    // Number of bits set in taken, kept separately so availability is O(1)
+    private AtomicInteger takenCount;
+
+    // Constructor for SeatMap
+    public SeatMap(int totalSeats, int seatsPerRow, int firstRows, int businessRows) 
+    {
+        if (seatsPerRow < 1 || seatsPerRow > SEAT_LETTERS.length())
+        {
+            throw new IllegalArgumentException("Invalid seats per row: " + seatsPerRow);
+        }
+        this.totalSeats = totalSeats;
+        this.seatsPerRow = seatsPerRow;
+        this.firstRows = firstRows;
+        this.businessRows = businessRows;
+        this.taken = new AtomicLongArray((totalSeats + 63) / 64);
+        this.takenCount = new AtomicInteger();
+    }
+
+    // Picks a sensible layout from the size of the aircraft: 4 abreast for small jets, 6 for narrow bodies, 10 for wide bodies
+    public static SeatMap forSeats(int totalSeats) 
+    {
+        return forSeats(totalSeats, 0, 0);
+    }
+
+    // The same with the first rows given over to first and business class
+    public static SeatMap forSeats(int totalSeats, int firstRows, int businessRows) 
+    {
+        int seatsPerRow = totalSeats <= 60 ? 4 : totalSeats <= 250 ? 6 : 10;
+        return new SeatMap(totalSeats, seatsPerRow, firstRows, businessRows);
+    }
+
+    // Getters for SeatMap
+    public int getTotalSeats() 
+    {
+        return totalSeats;
+    }
+
+    public int getSeatsPerRow() 
+    {
+        return seatsPerRow;
+    }
+
+    public int getFirstRows() 
+    {
+        return firstRows;
+    }
+
+    public int getBusinessRows() 
+    {
+        return businessRows;
+    }
+
+    public int getAvailableSeats() 
+    {
+        return totalSeats - takenCount.get();
+    }
+
+    public boolean isTaken(int seat) 
+    {
+        return (taken.get(seat >>> 6) & (1L << seat)) != 0;
+    }
+
+    // Returns the class of the given seat, from the row it is in
+    public SeatClass getSeatClass(int seat) 
+    {
+        int row = seat / seatsPerRow;
+        if (row < firstRows)
+        {
+            return SeatClass.FIRST;
+        }
+        if (row < firstRows + businessRows)
+        {
+            return SeatClass.BUSINESS;
+        }
+        return SeatClass.ECONOMY;
+    }
+
+    // Tries to take one particular seat. Returns false if someone else already has it
+    public boolean claim(int seat) 
+    {
+        if (seat < 0 || seat >= totalSeats)
+        {
+            return false;
+        }
+        int word = seat >>> 6;
+        long bit = 1L << seat;
+        while (true)
+        {
+            long current = taken.get(word);
+            if ((current & bit) != 0)
+            {
+                return false;
+            }
+            if (taken.compareAndSet(word, current, current | bit))
+            {
+                takenCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    // Takes the first free seat in the whole aircraft. Returns the seat, or -1 if the flight is full
+    public int claimAny() 
+    {
+        return claimAny(0, totalSeats);
+    }
+
+    // Takes the first free seat in [fromSeat, toSeat). Returns the seat, or -1 if every seat in the range is taken
+    public int claimAny(int fromSeat, int toSeat) 
+    {
+        if (fromSeat >= toSeat || takenCount.get() >= totalSeats)
+        {
+            return -1;
+        }
+        for (int word = fromSeat >>> 6; word <= (toSeat - 1) >>> 6; word++)
+        {
+            // Only the bits for seats inside the range count as free
+            long range = rangeMask(word, fromSeat, toSeat);
+            while (true)
+            {
+                long current = taken.get(word);
+                long free = ~current & range;
+                if (free == 0)
+                {
+                    break;
+                }
+                long bit = Long.lowestOneBit(free);
+                if (taken.compareAndSet(word, current, current | bit))
+                {
+                    takenCount.incrementAndGet();
+                    return (word << 6) + Long.numberOfTrailingZeros(bit);
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Takes count free seats, grabbing as many as it can from each word with a single compare-and-set
+    // Returns the seats, or null if there aren't that many free. Either every seat is taken or none is
+    public int[] claimMany(int count) 
+    {
+        return claimMany(count, 0, totalSeats);
+    }
+
+    // The same with every seat in [fromSeat, toSeat)
+    public int[] claimMany(int count, int fromSeat, int toSeat) 
+    {
+        if (count < 1 || count > getAvailableSeats() || count > toSeat - fromSeat)
+        {
+            return null;
+        }
+        int[] seats = new int[count];
+        int found = 0;
+        for (int word = fromSeat >>> 6; word <= (toSeat - 1) >>> 6 && found < count; word++)
+        {
+            long range = rangeMask(word, fromSeat, toSeat);
+            while (found < count)
+            {
+                long current = taken.get(word);
+                long free = ~current & range;
+                if (free == 0)
+                {
+                    break;
+                }
+                // Pick the lowest free bits, no more than we still need
+                long grab = 0;
+                for (int need = count - found; need > 0 && free != 0; need--)
+                {
+                    long bit = Long.lowestOneBit(free);
+                    grab |= bit;
+                    free &= ~bit;
+                }
+                if (taken.compareAndSet(word, current, current | grab))
+                {
+                    takenCount.addAndGet(Long.bitCount(grab));
+                    for (; grab != 0; grab &= grab - 1)
+                    {
+                        seats[found++] = (word << 6) + Long.numberOfTrailingZeros(grab);
+                    }
+                }
+            }
+        }
+        if (found < count)
+        {
+            for (int i = 0; i < found; i++)
+            {
+                release(seats[i]);
+            }
+            return null;
+        }
+        return seats;
+    }
+
+    // Takes count seats next to each other, all in one row when the group fits in a row
+    // Returns the seats, or null if there is no such block. Either every seat is taken or none is
+    public int[] claimAdjacent(int count) 
+    {
+        return claimAdjacent(count, 0, totalSeats);
+    }
+
+    // The same with every seat in [fromSeat, toSeat)
+    public int[] claimAdjacent(int count, int fromSeat, int toSeat) 
+    {
+        if (count < 1 || count > getAvailableSeats())
+        {
+            return null;
+        }
+        int start = fromSeat;
+        while (start + count <= toSeat)
+        {
+            // A group that fits in a row must not be split across two rows
+            if (count <= seatsPerRow && start / seatsPerRow != (start + count - 1) / seatsPerRow)
+            {
+                start = (start / seatsPerRow + 1) * seatsPerRow;
+                continue;
+            }
+            int blocked = lastTakenIn(start, start + count);
+            if (blocked >= 0)
+            {
+                start = blocked + 1;
+                continue;
+            }
+
+            // The block looked free, now try to take it. Another thread might get there first, in which case we give back what we took
+            int claimed = 0;
+            while (claimed < count && claim(start + claimed))
+            {
+                claimed++;
+            }
+            if (claimed == count)
+            {
+                int[] seats = new int[count];
+                for (int i = 0; i < count; i++)
+                {
+                    seats[i] = start + i;
+                }
+                return seats;
+            }
+            for (int i = 0; i < claimed; i++)
+            {
+                release(start + i);
+            }
+            start = start + claimed + 1;
+        }
+        return null;
+    }
+
+    // Frees a seat that was taken
+    public void release(int seat) 
+    {
+        int word = seat >>> 6;
+        long bit = 1L << seat;
+        while (true)
+        {
+            long current = taken.get(word);
+            if ((current & bit) == 0)
+            {
+                return;
+            }
+            if (taken.compareAndSet(word, current, current & ~bit))
+            {
+                takenCount.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    // Seat label like "12C" for a seat index
+    public String label(int seat) 
+    {
+        return (seat / seatsPerRow + 1) + "" + SEAT_LETTERS.charAt(seat % seatsPerRow);
+    }
+
+    // Seat index for a label like "12C" (ignoring case), or -1 if the label is not a seat on this aircraft
+    public int parseSeat(String label) 
+    {
+        if (label == null || label.length() < 2)
+        {
+            return -1;
+        }
+        int letter = SEAT_LETTERS.indexOf(Character.toUpperCase(label.charAt(label.length() - 1)));
+        if (letter < 0 || letter >= seatsPerRow)
+        {
+            return -1;
+        }
+        int row;
+        try
+        {
+            row = Integer.parseInt(label.substring(0, label.length() - 1));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+        int seat = (row - 1) * seatsPerRow + letter;
+        return row < 1 || seat >= totalSeats ? -1 : seat;
+    }
+
+    // Index of the last taken seat in [fromSeat, toSeat), or -1 if they are all free
+    private int lastTakenIn(int fromSeat, int toSeat) 
+    {
+        for (int seat = toSeat - 1; seat >= fromSeat; seat--)
+        {
+            if (isTaken(seat))
+            {
+                return seat;
+            }
+        }
+        return -1;
+    }
+
+    // Bits of the given word that belong to seats in [fromSeat, toSeat)
+    private static long rangeMask(int word, int fromSeat, int toSeat) 
+    {
+        int low = Math.max(fromSeat - (word << 6), 0);
+        int high = Math.min(toSeat - (word << 6), 64);
+        long mask = high == 64 ? -1L : (1L << high) - 1;
+        return mask & (-1L << low);
+    }
+}
+
+// BookingPolicy says which seats of a flight each kind of booking is sold from, and what a seat costs
+// Seats are split into pools of seats next to each other: the first and business class rows at the front, economy behind them,
+// and at the back a block held for a charter company (empty unless one is allocated). Bookings without a seat come from economy
+// Every kind of flight books through the same code and only its policy differs. A policy is plain data in one final class and
+// booking looks its seats up by pool number, instead of calling a method each kind of flight overrides, so the booking path
+// stays a single piece of code the JIT can inline however many kinds of flight there are
+// A policy never changes. Flights swap in a new one when their layout or block changes
+final class BookingPolicy 
+{
+    // Pools 0..2 are the seat classes, by ordinal
+    public static final int ECONOMY = 2;
+    public static final int BLOCK = 3;
+
+    // Pool i is the seats [start[i], end[i])
+    private final int[] start = new int[4];
+    private final int[] end = new int[4];
+
+    // Constructor for BookingPolicy, the back blockSeats seats (no more than economy has) are the block
+    public BookingPolicy(SeatMap seatMap, int blockSeats) 
+    {
+        int totalSeats = seatMap.getTotalSeats();
+        int firstEnd = Math.min(seatMap.getFirstRows() * seatMap.getSeatsPerRow(), totalSeats);
+        int businessEnd = Math.min((seatMap.getFirstRows() + seatMap.getBusinessRows()) * seatMap.getSeatsPerRow(), totalSeats);
+        int blockStart = totalSeats - Math.max(0, Math.min(blockSeats, totalSeats - businessEnd));
+        setPool(0, 0, firstEnd);
+        setPool(1, firstEnd, businessEnd);
+        setPool(ECONOMY, businessEnd, blockStart);
+        setPool(BLOCK, blockStart, totalSeats);
+    }
+
+    private void setPool(int pool, int from, int to) 
+    {
+        start[pool] = from;
+        end[pool] = to;
+    }
+
+    public int start(int pool) 
+    {
+        return start[pool];
+    }
+
+    public int end(int pool) 
+    {
+        return end[pool];
+    }
+
+    public int getBlockSeats() 
+    {
+        return end[BLOCK] - start[BLOCK];
+    }
+
+    // The pool a seat is in, with -1 (an overbooking) counted as economy
+    public int poolOf(int seat) 
+    {
+        for (int pool = 0; pool < BLOCK; pool++)
+        {
+            if (seat < end[pool])
+            {
+                return seat < 0 ? ECONOMY : pool;
+            }
+        }
+        return BLOCK;
+    }
+
+    // A seat that can be booked by its number. Block seats can't, they are only sold to the company as a block
+    public boolean isOpen(int seat) 
+    {
+        return seat >= 0 && seat < start[BLOCK];
+    }
+
+    // What the seat costs given the flight's fare: economy (and -1, an overbooking) sells at the fare, first and business at their percentage of it
+    public long fareCents(int seat, long fareCents) 
+    {
+        if (seat >= end[1] || seat < 0)
+        {
+            return fareCents;
+        }
+        return fareCents * (seat < end[0] ? SeatClass.FIRST : SeatClass.BUSINESS).getFarePercent() / 100;
+    }
+}
+
+// One passenger to be booked as part of a batch, on a given flight and optionally in a given seat
+class BookingRequest 
+{
+    private Flight flight;
+    private Passenger passenger;
+    // Seat label like "12C", or null for any free seat
+    private String seatNumber;
+
+    // Constructor for BookingRequest
+    public BookingRequest(Flight flight, Passenger passenger, String seatNumber) 
+    {
+        this.flight = flight;
+        this.passenger = passenger;
+        this.seatNumber = seatNumber;
+    }
+
+    // Getters for BookingRequest
+    public Flight getFlight() 
+    {
+        return flight;
+    }
+
+    public Passenger getPassenger() 
+    {
+        return passenger;
+    }
+
+    public String getSeatNumber() 
+    {
+        return seatNumber;
+    }
+}
+
+// A Booking ties one passenger to the flight and seat they were booked on
+class Booking 
+{
+    // Booking reference given to the passenger, unique across all flights
+    private long id;
+    private Flight flight;
+    private Passenger passenger;
+    // Index of the seat in the flight's seat map, or -1 for an overbooked passenger who gets a seat at the gate
+    private int seat;
+    // The fare the passenger paid, in paise (1/100 of a rupee) so money is never rounded
+    private long fareCents;
+    // Where the booking is kept in its flight's Manifest, -1 once it is cancelled. Only touched under the manifest's lock
+    private int slot = -1;
+    // The journal ticket its record was queued under, 0 without a journal. The thread that made the booking waits for it
+    private long journalTicket;
+    // The reference of the booking this one was changed from, 0 if it is a new booking. Saved with it, see BookingJournal
+    private long replacedId;
+    // The next booking reference to hand out, counted per shard
+    private static final AtomicLong nextId = new AtomicLong(1);
+    // Which shard this process is, out of how many. Unsharded it is shard 0 of 1
+    private static volatile int shard = 0;
+    private static volatile int shards = 1;
+
+    // Constructor for Booking
+    public Booking(long id, Flight flight, Passenger passenger, int seat, long fareCents) 
+    {
+        this(id, flight, passenger, seat, fareCents, 0);
+    }
+
+    // Constructor for a booking that takes the place of the one with replacedId, when a booking is changed
+    public Booking(long id, Flight flight, Passenger passenger, int seat, long fareCents, long replacedId) 
+    {
+        this.id = id;
+        this.flight = flight;
+        this.passenger = passenger;
+        this.seat = seat;
+        this.fareCents = fareCents;
+        this.replacedId = replacedId;
+    }
+
+    // Hands out a new booking reference. With several shards, shard i hands out n * shards + i,
+    // so references are unique across all of them and ShardRouter can tell which shard owns one
+    public static long newId() 
+    {
+        return nextId.getAndIncrement() * shards + shard;
+    }
+
+    // Makes sure a reference that is already in use (e.g. read back from the journal) is never handed out again
+    public static void reserveId(long usedId) 
+    {
+        nextId.accumulateAndGet(usedId / shards + 1, Math::max);
+    }
+
+    // Makes this process hand out the references of one shard. Called before any booking is made or restored
+    public static void useShard(int shardNumber, int shardCount) 
+    {
+        shard = shardNumber;
+        shards = shardCount;
+    }
+
+    // Getters for Booking
+    public long getId() 
+    {
+        return id;
+    }
+
+    public Flight getFlight() 
+    {
+        return flight;
+    }
+
+    public Passenger getPassenger() 
+    {
+        return passenger;
+    }
+
+    public int getSeat() 
+    {
+        return seat;
+    }
+
+    public long getFareCents() 
+    {
+        return fareCents;
+    }
+
+    public long getReplacedId() 
+    {
+        return replacedId;
+    }
+
+    // Seat label like "12C"
+    public String getSeatNumber() 
+    {
+        return seat < 0 ? "Assigned at gate" : flight.getSeatMap().label(seat);
+    }
+
+    int getSlot() 
+    {
+        return slot;
+    }
+
+    void setSlot(int slot) 
+    {
+        this.slot = slot;
+    }
+
+    long getJournalTicket() 
+    {
+        return journalTicket;
+    }
+
+    void setJournalTicket(long ticket) 
+    {
+        journalTicket = ticket;
+    }
+}
+
+// Manifest holds a flight's bookings in numbered slots. Each booking remembers its slot, so cancelling one is O(1):
+// the slot is emptied and put on a free list for the next booking to reuse, and nothing is shifted along like in an ArrayList
+// Every method locks the manifest, so it is safe to share between booking threads
+class Manifest 
+{
+    private Booking[] slots = new Booking[8];
+    // Slots [0, used) have been handed out at least once
+    private int used;
+    // Emptied slots waiting to be reused
+    private int[] freeSlots = new int[8];
+    private int freeCount;
+    private int size;
+    // The bookings as an array that never changes, for readers. Built when first asked for, dropped by every change
+    private volatile View view;
+
+    // The bookings at one moment, and how many of them have a seat (the others are overbooked and get one at the gate)
+    static class View 
+    {
+        final Booking[] bookings;
+        final int seatedCount;
+
+        View(Booking[] bookings, int seatedCount) 
+        {
+            this.bookings = bookings;
+            this.seatedCount = seatedCount;
+        }
+    }
+
+    // Puts the booking in a free slot
+    public synchronized void add(Booking booking) 
+    {
+        int slot;
+        if (freeCount > 0)
+        {
+            slot = freeSlots[--freeCount];
+        }
+        else
+        {
+            if (used == slots.length)
+            {
+                slots = Arrays.copyOf(slots, used * 2);
+            }
+            slot = used++;
+        }
+        slots[slot] = booking;
+        booking.setSlot(slot);
+        size++;
+        view = null;
+    }
+
+    // Adds several bookings with a single lock
+    public synchronized void addAll(List<Booking> bookings) 
+    {
+        for (Booking booking : bookings)
+        {
+            add(booking);
+        }
+    }
+
+    // Takes the booking out of its slot. Returns false if it isn't in this manifest, e.g. it was already cancelled
+    public synchronized boolean remove(Booking booking) 
+    {
+        int slot = booking.getSlot();
+        if (slot < 0 || slot >= used || slots[slot] != booking)
+        {
+            return false;
+        }
+        slots[slot] = null;
+        if (freeCount == freeSlots.length)
+        {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        booking.setSlot(-1);
+        size--;
+        view = null;
+        return true;
+    }
+
+    public synchronized int size() 
+    {
+        return size;
+    }
+
+    // The bookings in slot order, as an array nobody changes. Until the next change every caller gets the same array without locking
+    public Booking[] snapshot() 
+    {
+        return view().bookings;
+    }
+
+    // The bookings with their seated count, both from the same moment
+    public View view() 
+    {
+        View current = view;
+        if (current != null)
+        {
+            return current;
+        }
+        synchronized (this)
+        {
+            if (view == null)
+            {
+                Booking[] bookings = new Booking[size];
+                int count = 0;
+                int seated = 0;
+                for (int slot = 0; slot < used; slot++)
+                {
+                    if (slots[slot] != null)
+                    {
+                        bookings[count++] = slots[slot];
+                        if (slots[slot].getSeat() >= 0)
+                        {
+                            seated++;
+                        }
+                    }
+                }
+                view = new View(bookings, seated);
+            }
+            return view;
+        }
+    }
+}
+
+// A passenger waiting for a seat on a full flight
+// Passengers with a disability come first, everyone else is first come first served
+class WaitlistEntry implements Comparable<WaitlistEntry> 
+{
+    private Passenger passenger;
+    // Order the passenger joined in, used to keep the queue first come first served
+    private long sequence;
+
+    // Constructor for WaitlistEntry
+    public WaitlistEntry(Passenger passenger, long sequence) 
+    {
+        this.passenger = passenger;
+        this.sequence = sequence;
+    }
+
+    public Passenger getPassenger() 
+    {
+        return passenger;
+    }
+
+    @Override
+    public int compareTo(WaitlistEntry other) 
+    {
+        if (passenger.isDisability() != other.passenger.isDisability())
+        {
+            return passenger.isDisability() ? -1 : 1;
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+}
+
+// interface for anything that wants to hear about every successful booking (indexes, logs etc.)
+interface BookingListener 
+{
+    // called once for each booking, after the seat has been taken
+    void onBooking(Booking booking);
+
+    // called once for bookings made together as a batch. Listeners that can handle a batch more cheaply than one booking at a time override this
+    default void onBatch(List<Booking> bookings) 
+    {
+        for (Booking booking : bookings)
+        {
+            onBooking(booking);
+        }
+    }
+
+    // called once when a booking is cancelled, after its seat has been given back
+    default void onCancellation(Booking booking) 
+    {
+    }
+}
+
+// Flight is an abstract class that implements the mentioned interfaces
+abstract class Flight implements Displayable, FlightOperations 
+{
+    // Declaring all the parameters that define a flight
+    private String flightNumber;
+    private String source;
+    private String destination;
+    private String departureTime;
+    private String arrivalTime;
+    // The same two times as instants, in seconds since 1970 (UTC), for the date the flight is scheduled on
+    private long departureEpochSecond;
+    private long arrivalEpochSecond;
+    private int totalSeats;
+    // The aircraft flying it, null until it is put on one
+    private Aircraft aircraft;
+    private double fare;
+    // The same fare in paise, which is what prices are worked out from
+    private long baseFareCents;
+    // Every booking on this flight, i.e the passenger and their seat, kept in slots so a cancellation is O(1)
+    private Manifest manifest;
+    // Which seats are taken. Seats are claimed with compare-and-set on its bits,
+    // so it can never hand out more than totalSeats no matter how many threads book at once
+    private SeatMap seatMap;
+    // Which seats each kind of booking is sold from. Replaced as a whole when the layout or the charter block changes
+    private volatile BookingPolicy policy;
+    // Listeners that are told about every booking on every flight
+    private static final CopyOnWriteArrayList<BookingListener> bookingListeners = new CopyOnWriteArrayList<>();
+    // Where the current price of a flight comes from. Without one every flight sells at its base fare
+    private static volatile FareQuotes fareQuotes;
+    // Where booking counts and timings go. Without one nothing is measured
+    private static volatile Metrics metrics;
+    // Where booked passengers are kept. Without one each booking keeps its Passenger object
+    private static volatile PassengerStore passengerStore;
+    // What refuses double bookings. Without one a passport can be booked any number of times
+    private static volatile BookingGuard bookingGuard;
+    // Where bookings and cancellations are saved. Without one they only last as long as the program runs
+    private static volatile BookingJournal bookingJournal;
+    // How many bookings can be sold on top of the seats, as a percentage of totalSeats
+    private volatile int overbookingPercent;
+    // Bookings sold beyond the seats. These passengers are given a seat at the gate
+    private AtomicInteger unseatedBookings;
+    // Passengers waiting for a place on this flight, in priority order. Only created once someone joins, guarded by this flight
+    private PriorityQueue<WaitlistEntry> waitlist;
+    private long waitlistSequence;
+
+    // Constructor for Flight
+    public Flight(String flightNumber, String source, String destination, String departureTime, String arrivalTime, int totalSeats, double fare) 
+    {
+        this.flightNumber = flightNumber;
+        this.source = source;
+        this.destination = destination;
+        this.departureTime = departureTime;
+        this.arrivalTime = arrivalTime;
+        this.totalSeats = totalSeats;
+        this.fare = fare;
+        this.baseFareCents = Math.round(fare * 100);
+        this.manifest = new Manifest();
+        this.seatMap = SeatMap.forSeats(totalSeats);
+        this.policy = new BookingPolicy(seatMap, 0);
+        this.unseatedBookings = new AtomicInteger();
+        // Until it is told otherwise, a flight with HH:mm times leaves today
+        scheduleOn(LocalDate.now(Schedule.zoneOf(source)));
+    }
+
+    // Getters for Flight
+    public String getFlightNumber() 
+    {
+        return flightNumber;
+    }
+
+    public String getSource() 
+    {
+        return source;
+    }
+
+    public String getDestination() 
+    {
+        return destination;
+    }
+
+    public String getDepartureTime() 
+    {
+        return departureTime;
+    }
+
+    public String getArrivalTime() 
+    {
+        return arrivalTime;
+    }
+
+    public long getDepartureEpochSecond() 
+    {
+        return departureEpochSecond;
+    }
+
+    public long getArrivalEpochSecond() 
+    {
+        return arrivalEpochSecond;
+    }
+
+    // The day the flight leaves, where it leaves from. With the flight number this is what a booking is for
+    public LocalDate getDepartureDate() 
+    {
+        return LocalDate.ofInstant(Instant.ofEpochSecond(departureEpochSecond), Schedule.zoneOf(source));
+    }
+
+    // Flight time, worked out from the instants so it is right across midnight and time zones
+    public int getDurationMinutes() 
+    {
+        return (int) ((arrivalEpochSecond - departureEpochSecond) / 60);
+    }
+
+    // Puts the flight's HH:mm times on the given date. Times that have their own date keep it
+    // An arrival that would be before the departure is on the next day, like 22:00 -> 00:30
+    // Bookings are for one departure, so a flight that has any can't be moved to another day
+    public synchronized void scheduleOn(LocalDate date) 
+    {
+        if (manifest != null && (manifest.size() > 0 || (waitlist != null && !waitlist.isEmpty())))
+        {
+            throw new IllegalStateException("Flight " + flightNumber + " already has bookings for " + getDepartureDate());
+        }
+        long departure = Schedule.toEpochSecond(departureTime, date, Schedule.zoneOf(source));
+        long arrival = Schedule.toEpochSecond(arrivalTime, date, Schedule.zoneOf(destination));
+        if (arrival < departure && !Schedule.isDated(arrivalTime))
+        {
+            arrival = Schedule.toEpochSecond(arrivalTime, date.plusDays(1), Schedule.zoneOf(destination));
+        }
+        if (arrival < departure)
+        {
+            throw new IllegalArgumentException("Flight " + flightNumber + " lands before it leaves");
+        }
+        departureEpochSecond = departure;
+        arrivalEpochSecond = arrival;
+    }
+
+    // Puts the flight's HH:mm times on the next day it leaves after now, i.e today if it hasn't left yet, otherwise tomorrow
+    public synchronized void scheduleNext(Instant now) 
+    {
+        LocalDate today = LocalDate.ofInstant(now, Schedule.zoneOf(source));
+        scheduleOn(today);
+        if (departureEpochSecond < now.getEpochSecond() && !Schedule.isDated(departureTime))
+        {
+            scheduleOn(today.plusDays(1));
+        }
+    }
+
+    public int getTotalSeats() 
+    {
+        return totalSeats;
+    }
+
+    public Aircraft getAircraft() 
+    {
+        return aircraft;
+    }
+
+    // Puts the flight on an aircraft, so it has the aircraft's seats and cabins from now on (laid out for that size, see SeatMap.forSeats)
+    public synchronized void assignAircraft(Aircraft aircraft) 
+    {
+        layOut(SeatMap.forSeats(aircraft.getSeats(), aircraft.getFirstRows(), aircraft.getBusinessRows()));
+        this.aircraft = aircraft;
+    }
+
+    // Gives the first rows of the aircraft over to first and business class
+    public synchronized void setCabins(int firstRows, int businessRows) 
+    {
+        layOut(SeatMap.forSeats(totalSeats, firstRows, businessRows));
+    }
+
+    // Seat numbers depend on the layout, so it can only change before anything is booked or restored, and before booking threads start
+    private void layOut(SeatMap layout) 
+    {
+        if (manifest.size() > 0 || (waitlist != null && !waitlist.isEmpty()))
+        {
+            throw new IllegalStateException("Flight " + flightNumber + " already has bookings");
+        }
+        this.totalSeats = layout.getTotalSeats();
+        this.seatMap = layout;
+        this.policy = new BookingPolicy(layout, policy.getBlockSeats());
+    }
+
+    public BookingPolicy getPolicy() 
+    {
+        return policy;
+    }
+
+    protected void setPolicy(BookingPolicy policy) 
+    {
+        this.policy = policy;
+    }
+
+    public int getAvailableSeats() 
+    {
+        // The seat map keeps a count of taken seats, so this doesn't have to look at the passengers
+        return seatMap.getAvailableSeats();
+    }
+
+    public SeatMap getSeatMap() 
+    {
+        return seatMap;
+    }
+
+    // Places that can still be sold: free seats plus whatever is left of the overbooking allowance
+    public int getBookableSeats() 
+    {
+        return getAvailableSeats() + Math.max(0, getOverbookingLimit() - unseatedBookings.get());
+    }
+
+    public int getOverbookingPercent() 
+    {
+        return overbookingPercent;
+    }
+
+    // Number of bookings that may be sold beyond the seats
+    public int getOverbookingLimit() 
+    {
+        return totalSeats * overbookingPercent / 100;
+    }
+
+    // Allows percent% of totalSeats to be sold on top of the seats. Raising it lets waitlisted passengers in straight away
+    public void setOverbookingPercent(int percent) 
+    {
+        if (percent < 0)
+        {
+            throw new IllegalArgumentException("Overbooking can't be negative");
+        }
+        overbookingPercent = percent;
+        promoteWaitlisted();
+    }
+
+    // Number of passengers on the waitlist
+    public synchronized int getWaitlistSize() 
+    {
+        return waitlist == null ? 0 : waitlist.size();
+    }
+
+    // Puts the passenger on the waitlist and returns how many are waiting
+    // If a place came free in the meantime they are booked straight away and are no longer waiting
+    // Throws BookingConflictException if a guard finds they are already booked on this flight or one at the same time
+    public int joinWaitlist(Passenger passenger) 
+    {
+        BookingGuard guard = bookingGuard;
+        if (guard != null)
+        {
+            guard.check(passenger, this, null);
+        }
+        synchronized (this)
+        {
+            if (waitlist == null)
+            {
+                waitlist = new PriorityQueue<>();
+            }
+            waitlist.add(new WaitlistEntry(passenger, waitlistSequence++));
+        }
+        promoteWaitlisted();
+        return getWaitlistSize();
+    }
+
+    // Books waitlisted passengers, highest priority first, for as long as there is room
+    // Taking each one off the queue is O(log n), and the booking itself happens outside the waitlist lock
+    // Returns the bookings that were made
+    public List<Booking> promoteWaitlisted() 
+    {
+        ArrayList<Booking> promoted = new ArrayList<>();
+        while (true)
+        {
+            WaitlistEntry next;
+            synchronized (this)
+            {
+                if (waitlist == null || waitlist.isEmpty())
+                {
+                    break;
+                }
+                next = waitlist.poll();
+            }
+            Booking booking;
+            try
+            {
+                booking = bookSeat(next.getPassenger(), null);
+            }
+            catch (BookingConflictException e)
+            {
+                // They got booked on this flight or one at the same time while they were waiting, so they don't need the place
+                continue;
+            }
+            catch (BookingNotSavedException e)
+            {
+                // Nothing can be saved at the moment, so they keep their place and nobody else is tried either
+                synchronized (this)
+                {
+                    waitlist.add(next);
+                }
+                break;
+            }
+            if (booking == null)
+            {
+                // Still no room, so they go back where they were
+                synchronized (this)
+                {
+                    waitlist.add(next);
+                }
+                break;
+            }
+            promoted.add(booking);
+        }
+        return promoted;
+    }
+
+    // The base fare the flight was set up with
+    public double getFare() 
+    {
+        return fare;
+    }
+
+    public long getBaseFareCents() 
+    {
+        return baseFareCents;
+    }
+
+    // What a seat on this flight costs right now, in paise
+    public long getFareCents() 
+    {
+        FareQuotes quotes = fareQuotes;
+        return quotes == null ? baseFareCents : quotes.quote(this);
+    }
+
+    // Sets where current prices come from for all flights
+    public static void setFareQuotes(FareQuotes quotes) 
+    {
+        fareQuotes = quotes;
+    }
+
+    // Sets where the passengers of new bookings are kept for all flights. Set it before any booking is made or restored
+    public static void setPassengerStore(PassengerStore store) 
+    {
+        passengerStore = store;
+    }
+
+    // The passenger to keep in a booking: a view of its record when there is a PassengerStore, otherwise the passenger itself
+    static Passenger stored(Passenger passenger) 
+    {
+        PassengerStore store = passengerStore;
+        return store == null ? passenger : store.add(passenger);
+    }
+
+    // Sets what checks every new booking for double bookings, null turns it off. It has to be a booking listener as well
+    public static void setBookingGuard(BookingGuard guard) 
+    {
+        bookingGuard = guard;
+    }
+
+    // Sets where bookings and cancellations on all flights are saved. Set it after the journal has been replayed,
+    // so the bookings it restores aren't saved a second time
+    public static void setBookingJournal(BookingJournal journal) 
+    {
+        bookingJournal = journal;
+    }
+
+    // Sets where booking timings are recorded for all flights, null turns it off
+    public static void setMetrics(Metrics bookingMetrics) 
+    {
+        metrics = bookingMetrics;
+    }
+
+    // Returns a copy of the passenger list, so callers can loop over it while other threads keep booking
+    public ArrayList<Passenger> getPassengers() 
+    {
+        Booking[] bookings = manifest.snapshot();
+        ArrayList<Passenger> passengers = new ArrayList<>(bookings.length);
+        for (Booking booking : bookings)
+        {
+            passengers.add(booking.getPassenger());
+        }
+        return passengers;
+    }
+
+    // Returns the bookings on this flight as they are now. The list never changes, later bookings aren't in it
+    public List<Booking> getBookings() 
+    {
+        return Collections.unmodifiableList(Arrays.asList(manifest.snapshot()));
+    }
+
+    // The bookings as they are now together with how many of them have a seat, for a FlightSnapshot
+    Manifest.View getManifestView() 
+    {
+        return manifest.view();
+    }
+
+    // Number of bookings on this flight, including overbooked ones, without copying them
+    public int getBookedCount() 
+    {
+        return manifest.size();
+    }
+
+    // Registers a listener that will be called for every booking made on any flight
+    public static void addBookingListener(BookingListener listener) 
+    {
+        bookingListeners.add(listener);
+    }
+
+    public static void removeBookingListener(BookingListener listener) 
+    {
+        bookingListeners.remove(listener);
+    }
+
+    // Takes away every listener at once, for the benchmarks, which must not book through whatever an earlier run left behind
+    static void clearBookingListeners() 
+    {
+        bookingListeners.clear();
+    }
+
+    // Books a particular seat, or the first free economy seat if seatNumber is null
+    // When economy is full, a booking without a particular seat can still be sold from the overbooking allowance
+    @Override
+    public Booking bookSeat(Passenger passenger, String seatNumber) 
+    {
+        return bookSeat(passenger, BookingPolicy.ECONOMY, seatNumber, null);
+    }
+
+    // Books the first free seat in the given class
+    @Override
+    public Booking bookSeatInClass(Passenger passenger, SeatClass seatClass) 
+    {
+        return bookSeat(passenger, seatClass.ordinal(), null, null);
+    }
+
+    // Books by what the passenger asked for: a seat like "12C", a class like "Business", "Block" for a seat in the
+    // charter company's block, or null for any seat
+    public Booking bookChoice(Passenger passenger, String choice) 
+    {
+        SeatClass seatClass = SeatClass.parse(choice);
+        if (seatClass != null)
+        {
+            return bookSeatInClass(passenger, seatClass);
+        }
+        if (choice != null && choice.equalsIgnoreCase("Block"))
+        {
+            return bookFromPool(passenger, BookingPolicy.BLOCK);
+        }
+        return bookSeat(passenger, choice);
+    }
+
+    // Books the first free seat of one of the policy's pools
+    protected Booking bookFromPool(Passenger passenger, int pool) 
+    {
+        return bookSeat(passenger, pool, null, null);
+    }
+
+    // Every kind of booking on every kind of flight comes through here, and only the pool number and the policy's data differ
+    // replacing is the booking this one takes the place of when a booking is changed, so the guard doesn't count it as a clash
+    private Booking bookSeat(Passenger passenger, int pool, String seatNumber, Booking replacing) 
+    {
+        Metrics current = metrics;
+        if (current == null)
+        {
+            return saved(claimSeat(passenger, pool, seatNumber, replacing));
+        }
+        long start = current.startTimer();
+        Booking booking = saved(claimSeat(passenger, pool, seatNumber, replacing));
+        current.recordBooking(start, booking != null);
+        return booking;
+    }
+
+    // With a guard, the passport is checked and booked under its lock so nobody can book it in between
+    // The lock is let go as soon as the guard and the index know about the booking; waiting for the disk happens after
+    private Booking claimSeat(Passenger passenger, int pool, String seatNumber, Booking replacing) 
+    {
+        BookingGuard guard = bookingGuard;
+        if (guard == null)
+        {
+            return takeSeat(passenger, pool, seatNumber, replacing);
+        }
+        ReentrantLock lock = guard.lock(passenger.getPassportNumber());
+        try
+        {
+            guard.check(passenger, this, replacing);
+            return takeSeat(passenger, pool, seatNumber, replacing);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Takes the seat asked for, or without one the first free seat in the pool
+    // The price is read before the seat is claimed, so the passenger pays what was quoted without their own seat counted as sold
+    private Booking takeSeat(Passenger passenger, int pool, String seatNumber, Booking replacing) 
+    {
+        BookingPolicy current = policy;
+        long fareCents = getFareCents();
+        int seat;
+        if (seatNumber == null)
+        {
+            seat = seatMap.claimAny(current.start(pool), current.end(pool));
+            if (seat < 0)
+            {
+                return pool == BookingPolicy.ECONOMY && claimOverbooking() ? addPassenger(passenger, -1, fareCents, replacing) : null;
+            }
+        }
+        else
+        {
+            seat = seatMap.parseSeat(seatNumber);
+            if (!current.isOpen(seat) || !seatMap.claim(seat))
+            {
+                return null;
+            }
+        }
+        return addPassenger(passenger, seat, fareCents, replacing);
+    }
+
+    // Books a group of passengers into seats next to each other, either all of them or none
+    // Returns the bookings in the same order as the passengers, or null if there is no block of free seats big enough
+    public List<Booking> bookAdjacentSeats(List<Passenger> group) 
+    {
+        BookingGuard guard = bookingGuard;
+        if (guard == null)
+        {
+            return saved(takeAdjacentSeats(group));
+        }
+        ArrayList<BookingRequest> requests = new ArrayList<>(group.size());
+        for (Passenger passenger : group)
+        {
+            requests.add(new BookingRequest(this, passenger, null));
+        }
+        List<ReentrantLock> held = guard.lock(requests);
+        List<Booking> bookings;
+        try
+        {
+            guard.check(requests);
+            bookings = takeAdjacentSeats(group);
+        }
+        finally
+        {
+            BookingGuard.unlock(held);
+        }
+        return saved(bookings);
+    }
+
+    private List<Booking> takeAdjacentSeats(List<Passenger> group) 
+    {
+        BookingPolicy current = policy;
+        long fareCents = getFareCents();
+        int[] seats = seatMap.claimAdjacent(group.size(), current.start(BookingPolicy.ECONOMY), current.end(BookingPolicy.ECONOMY));
+        if (seats == null)
+        {
+            return null;
+        }
+        ArrayList<Booking> bookings = new ArrayList<>(seats.length);
+        for (int i = 0; i < seats.length; i++)
+        {
+            bookings.add(new Booking(Booking.newId(), this, stored(group.get(i)), seats[i], current.fareCents(seats[i], fareCents)));
+        }
+        addBookings(bookings);
+        return bookings;
+    }
+
+    // Books every passenger in any free seat, or none of them
+    @Override
+    public List<Booking> bookTickets(List<Passenger> passengers) 
+    {
+        ArrayList<BookingRequest> requests = new ArrayList<>(passengers.size());
+        for (Passenger passenger : passengers)
+        {
+            requests.add(new BookingRequest(this, passenger, null));
+        }
+        return bookBatch(requests);
+    }
+
+    // Books every request, which can be spread over many flights, or none of them
+    // Returns the bookings in the same order as the requests, or null if any seat could not be had
+    // Compared to booking one at a time, each flight's free seats are claimed a word of the seat map at a time,
+    // each flight's list is locked once, the listeners see the whole batch in one call and the journal is waited for once
+    // While a batch that ends up failing is in progress, its seats look taken to other bookings
+    // With a guard, a batch that would double book anyone throws BookingConflictException and nothing in it is booked
+    public static List<Booking> bookBatch(List<BookingRequest> requests) 
+    {
+        BookingGuard guard = bookingGuard;
+        if (guard == null)
+        {
+            return saved(takeBatch(requests));
+        }
+        // Up to every stripe can be held here, so the batch waits for the disk only after letting go of them
+        List<ReentrantLock> held = guard.lock(requests);
+        List<Booking> bookings;
+        try
+        {
+            guard.check(requests);
+            bookings = takeBatch(requests);
+        }
+        finally
+        {
+            BookingGuard.unlock(held);
+        }
+        return saved(bookings);
+    }
+
+    private static List<Booking> takeBatch(List<BookingRequest> requests) 
+    {
+        // Group the requests by flight, keeping the indexes so the results come back in request order
+        LinkedHashMap<Flight, ArrayList<Integer>> byFlight = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++)
+        {
+            byFlight.computeIfAbsent(requests.get(i).getFlight(), f -> new ArrayList<>()).add(i);
+        }
+        // Everyone in the batch pays the price of their flight from before the batch, so it is read before any seat is claimed
+        HashMap<Flight, Long> fares = new HashMap<>();
+        for (Flight flight : byFlight.keySet())
+        {
+            fares.put(flight, flight.getFareCents());
+        }
+
+        int[] seats = new int[requests.size()];
+        Arrays.fill(seats, -1);
+        boolean complete = true;
+        for (Map.Entry<Flight, ArrayList<Integer>> group : byFlight.entrySet())
+        {
+            SeatMap seatMap = group.getKey().seatMap;
+            BookingPolicy policy = group.getKey().policy;
+            // Particular seats first, so the free seats handed out after can't take them
+            int anySeat = 0;
+            for (int i : group.getValue())
+            {
+                String seatNumber = requests.get(i).getSeatNumber();
+                if (seatNumber == null)
+                {
+                    anySeat++;
+                }
+                else if (policy.isOpen(seatMap.parseSeat(seatNumber)) && seatMap.claim(seatMap.parseSeat(seatNumber)))
+                {
+                    seats[i] = seatMap.parseSeat(seatNumber);
+                }
+                else
+                {
+                    complete = false;
+                    break;
+                }
+            }
+            int[] claimed = complete && anySeat > 0
+                ? seatMap.claimMany(anySeat, policy.start(BookingPolicy.ECONOMY), policy.end(BookingPolicy.ECONOMY)) : new int[0];
+            if (claimed == null)
+            {
+                complete = false;
+            }
+            if (!complete)
+            {
+                break;
+            }
+            int next = 0;
+            for (int i : group.getValue())
+            {
+                if (seats[i] < 0)
+                {
+                    seats[i] = claimed[next++];
+                }
+            }
+        }
+
+        // Give back everything we took if any part of the batch failed
+        if (!complete)
+        {
+            for (int i = 0; i < seats.length; i++)
+            {
+                if (seats[i] >= 0)
+                {
+                    requests.get(i).getFlight().seatMap.release(seats[i]);
+                }
+            }
+            return null;
+        }
+
+        ArrayList<Booking> booked = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++)
+        {
+            BookingRequest request = requests.get(i);
+            Flight flight = request.getFlight();
+            booked.add(new Booking(Booking.newId(), flight, stored(request.getPassenger()), seats[i], flight.policy.fareCents(seats[i], fares.get(flight))));
+        }
+        addBookings(booked);
+        return booked;
+    }
+
+    // Adds bookings whose seats are already claimed, each flight's in one go, and tells the listeners about them in one call
+    // If the journal won't take them none of them stays booked and BookingNotSavedException is thrown
+    private static void addBookings(List<Booking> bookings) 
+    {
+        LinkedHashMap<Flight, ArrayList<Booking>> byFlight = new LinkedHashMap<>();
+        for (Booking booking : bookings)
+        {
+            byFlight.computeIfAbsent(booking.getFlight(), f -> new ArrayList<>()).add(booking);
+        }
+        ArrayList<Booking> added = new ArrayList<>(bookings.size());
+        try
+        {
+            for (Map.Entry<Flight, ArrayList<Booking>> group : byFlight.entrySet())
+            {
+                group.getKey().addToManifest(group.getValue());
+                added.addAll(group.getValue());
+            }
+        }
+        catch (BookingNotSavedException e)
+        {
+            // Nobody has been told about the flights that were added, so they are just taken out again
+            for (Booking booking : added)
+            {
+                booking.getFlight().removeFromManifest(booking, false);
+            }
+            for (Booking booking : bookings)
+            {
+                booking.getFlight().giveBack(booking);
+            }
+            throw e;
+        }
+        for (BookingListener listener : bookingListeners)
+        {
+            listener.onBatch(bookings);
+        }
+    }
+
+    // Books any free economy seat, the same for every kind of flight
+    // The seat map hands each seat to exactly one thread, so two threads can never both take the last seat
+    // It is final so the JIT never has to work out which kind of flight it is booking on
+    @Override
+    public final boolean bookTicket(Passenger passenger) 
+    {
+        return bookSeat(passenger, null) != null;
+    }
+
+    // Cancels the booking: it leaves the manifest in O(1), its seat is given back, and the waitlist gets a chance at the room
+    @Override
+    public boolean cancelBooking(Booking booking) 
+    {
+        if (booking.getFlight() != this)
+        {
+            return false;
+        }
+        long ticket = cancel(booking, true);
+        if (ticket < 0)
+        {
+            return false;
+        }
+        // Nothing can be undone once the seat may have gone to someone else, so if this throws the booking is cancelled
+        // here but may be back after a restart
+        BookingJournal journal = bookingJournal;
+        if (journal != null && ticket > 0)
+        {
+            journal.awaitSaved(ticket);
+        }
+        return true;
+    }
+
+    // Does the cancelling without waiting for the disk, see removeFromManifest for mustSave. Returns the journal ticket, or -1 if
+    // the booking was already gone
+    private long cancel(Booking booking, boolean mustSave) 
+    {
+        // Only one caller can take the booking out of the manifest, so its seat is never given back twice
+        long ticket = removeFromManifest(booking, mustSave);
+        if (ticket < 0)
+        {
+            return ticket;
+        }
+        giveBack(booking);
+        for (BookingListener listener : bookingListeners)
+        {
+            listener.onCancellation(booking);
+        }
+        promoteWaitlisted();
+        return ticket;
+    }
+
+    // Changes a booking to this flight (or to another seat on the same flight)
+    // The new booking's journal record names the old one, and replaying it cancels the old one, so the change is saved
+    // as one record: a crash can't leave the passenger with both. The old booking's own cancellation record is then optional
+    // Without a seat number the passenger stays in the pool they were booked from, e.g. business stays business
+    @Override
+    public Booking rebook(Booking booking, String seatNumber) 
+    {
+        int pool = booking.getFlight().getPolicy().poolOf(booking.getSeat());
+        Booking changed = bookSeat(booking.getPassenger(), pool, seatNumber, booking);
+        if (changed == null)
+        {
+            return null;
+        }
+        if (booking.getFlight().cancel(booking, false) < 0)
+        {
+            // Someone cancelled the old booking while we were making the new one, so there is nothing to change
+            cancelBooking(changed);
+            return null;
+        }
+        return changed;
+    }
+
+    // Puts a saved booking back into its seat at the fare it was sold at and under its old reference, e.g. when the journal is replayed
+    // Returns null if the seat is already taken
+    public Booking restoreBooking(long id, Passenger passenger, int seat, long fareCents) 
+    {
+        boolean claimed = seat < 0 ? claimOverbooking() : seatMap.claim(seat);
+        if (!claimed)
+        {
+            return null;
+        }
+        Booking.reserveId(id);
+        return saved(addPassenger(new Booking(id, this, stored(passenger), seat, fareCents)));
+    }
+
+    // Takes one place from the overbooking allowance with a CAS loop, so it can't be oversold either
+    private boolean claimOverbooking() 
+    {
+        int limit = getOverbookingLimit();
+        int unseated;
+        do
+        {
+            unseated = unseatedBookings.get();
+            if (unseated >= limit)
+            {
+                return false;
+            }
+        }
+        while (!unseatedBookings.compareAndSet(unseated, unseated + 1));
+        return true;
+    }
+
+    // Adds the passenger once their seat has been claimed and tells the listeners. fareCents is the flight's fare from before the claim
+    private Booking addPassenger(Passenger passenger, int seat, long fareCents, Booking replacing) 
+    {
+        return addPassenger(new Booking(Booking.newId(), this, stored(passenger), seat, policy.fareCents(seat, fareCents),
+                                        replacing == null ? 0 : replacing.getId()));
+    }
+
+    // The booking is queued for the journal but not saved yet, the caller waits for that with saved() once it holds no locks
+    private Booking addPassenger(Booking booking) 
+    {
+        // Each flight only locks its own manifest, so bookings on different flights never wait for each other
+        try
+        {
+            addToManifest(Collections.singletonList(booking));
+        }
+        catch (BookingNotSavedException e)
+        {
+            giveBack(booking);
+            throw e;
+        }
+
+        // Listeners are called outside the lock so a slow listener can't hold up other bookings on this flight
+        for (BookingListener listener : bookingListeners)
+        {
+            listener.onBooking(booking);
+        }
+        return booking;
+    }
+
+    // Adds bookings on this flight whose seats are already claimed, and queues their journal records under the same lock
+    // That way nobody can find (and cancel) a booking before its record is queued, and a snapshot of the manifest has
+    // exactly the bookings whose records were queued before it. Each booking is given the journal ticket to wait for
+    // If the journal won't take them they are taken out again before anyone sees them, and BookingNotSavedException is thrown
+    private void addToManifest(List<Booking> bookings) 
+    {
+        BookingJournal journal = bookingJournal;
+        if (journal == null)
+        {
+            manifest.addAll(bookings);
+            return;
+        }
+        ArrayList<ByteBuffer> records = new ArrayList<>(bookings.size());
+        for (Booking booking : bookings)
+        {
+            records.add(BookingJournal.encode(booking));
+        }
+        synchronized (manifest)
+        {
+            manifest.addAll(bookings);
+            long ticket;
+            try
+            {
+                ticket = journal.append(records);
+            }
+            catch (BookingNotSavedException e)
+            {
+                for (Booking booking : bookings)
+                {
+                    manifest.remove(booking);
+                }
+                throw e;
+            }
+            for (Booking booking : bookings)
+            {
+                booking.setJournalTicket(ticket);
+            }
+        }
+    }
+
+    // Takes the booking out of the manifest and queues its cancellation record under the same lock, see addToManifest
+    // Returns the journal ticket (0 without a journal), or -1 if it wasn't in the manifest, e.g. it was already cancelled
+    // If the journal won't take the cancellation and mustSave is set, the booking is put back and BookingNotSavedException
+    // is thrown. Without it the booking stays out anyway: it was never saved, or something already saved cancels it
+    private long removeFromManifest(Booking booking, boolean mustSave) 
+    {
+        BookingJournal journal = bookingJournal;
+        ByteBuffer record = journal == null ? null : BookingJournal.encodeCancellation(booking);
+        synchronized (manifest)
+        {
+            if (!manifest.remove(booking))
+            {
+                return -1;
+            }
+            if (journal == null)
+            {
+                return 0;
+            }
+            try
+            {
+                return journal.append(Collections.singletonList(record));
+            }
+            catch (BookingNotSavedException e)
+            {
+                if (!mustSave)
+                {
+                    return 0;
+                }
+                manifest.add(booking);
+                throw e;
+            }
+        }
+    }
+
+    // Waits for the journal to have the booking on disk, and takes it back out if it can't. Returns the booking, which may be null
+    // Called once the caller holds no locks, so a booking thread never holds up others while the disk syncs
+    private static Booking saved(Booking booking) 
+    {
+        if (booking != null)
+        {
+            saved(Collections.singletonList(booking));
+        }
+        return booking;
+    }
+
+    // The same for bookings made together, which all wait for the last of their records
+    private static List<Booking> saved(List<Booking> bookings) 
+    {
+        BookingJournal journal = bookingJournal;
+        if (journal == null || bookings == null)
+        {
+            return bookings;
+        }
+        long ticket = 0;
+        for (Booking booking : bookings)
+        {
+            ticket = Math.max(ticket, booking.getJournalTicket());
+        }
+        if (ticket == 0)
+        {
+            return bookings;
+        }
+        try
+        {
+            journal.awaitSaved(ticket);
+        }
+        catch (BookingNotSavedException e)
+        {
+            takeBack(bookings);
+            throw e;
+        }
+        return bookings;
+    }
+
+    // Takes back bookings the journal couldn't save. The listeners have heard about them, so they hear about this like a cancellation
+    // A cancellation record is queued in case a booking's record reaches the disk after all (e.g. after an interrupted wait),
+    // but nothing waits for it, and the waitlist isn't promoted into the seats, since that would have to be saved too
+    private static void takeBack(List<Booking> bookings) 
+    {
+        for (Booking booking : bookings)
+        {
+            Flight flight = booking.getFlight();
+            if (flight.removeFromManifest(booking, false) >= 0)
+            {
+                flight.giveBack(booking);
+                for (BookingListener listener : bookingListeners)
+                {
+                    listener.onCancellation(booking);
+                }
+            }
+        }
+    }
+
+    // Gives back a booking's seat, or its place in the overbooking allowance for a seat of -1, and frees its passenger record
+    private void giveBack(Booking booking) 
+    {
+        PassengerStore store = passengerStore;
+        if (store != null)
+        {
+            store.release(booking.getPassenger());
+        }
+        int seat = booking.getSeat();
+        if (seat >= 0)
+        {
+            seatMap.release(seat);
+        }
+        else
+        {
+            unseatedBookings.decrementAndGet();
+        }
+    }
+
+    // Writes the line displayDetails prints onto the end of out, so a listing can put many flights into one buffer
+    public void appendDetails(StringBuilder out) 
+    {
+        appendDetails(out, getAvailableSeats(), getFareCents());
+    }
+
+    // The same, with the free seats and fare given, e.g from a FlightSnapshot
+    public void appendDetails(StringBuilder out, int availableSeats, long fareCents) 
+    {
+        out.append("\nFlight Number: ").append(getFlightNumber());
+        out.append("  Source: ").append(getSource());
+        out.append("  Destination: ").append(getDestination());
+        out.append("  Departure Time: ").append(getDepartureTime());
+        out.append("  Arrival Time: ").append(getArrivalTime());
+        out.append("  Available Seats: ").append(availableSeats);
+        out.append("  Fare: ");
+        FareQuotes.appendCents(out, fareCents);
+    }
+
+    // Prints the flight's line with one write. Kinds of flight that show more override appendDetails
+    @Override
+    public void displayDetails() 
+    {
+        StringBuilder details = new StringBuilder(180);
+        appendDetails(details);
+        System.out.print(details);
+    }
+}
+
+// RegularFlight is a class that extends the superclass Flight
+class RegularFlight extends Flight 
+{
+    // Constructor for RegularFlight that takes all the variables from super class Flight
+    public RegularFlight(String flightNumber, String source, String destination, String departureTime, String arrivalTime, int totalSeats, double fare) 
+    {
+        super(flightNumber, source, destination, departureTime, arrivalTime, totalSeats, fare);
+    }
+}
+
+// CharterFlight is a class that extends the superclass Flight
+class CharterFlight extends Flight 
+{
+    // CharterFlight will absorb all variables from super class Flight
+    // We declare additional variables for CharterFlight specifically
+    private String charterCompany;
+
+    // Constructor for charter flight
+    public CharterFlight(String flightNumber, String source, String destination, String departureTime, String arrivalTime, int totalSeats, double fare, String charterCompany) 
+    {
+        super(flightNumber, source, destination, departureTime, arrivalTime, totalSeats, fare);
+        this.charterCompany = charterCompany;
+    }
+
+    // Getters
+    public String getCharterCompany() 
+    {
+        return charterCompany;
+    }
+
+    public int getBlockSeats() 
+    {
+        return getPolicy().getBlockSeats();
+    }
+
+    // Holds the back seats of the aircraft for the charter company, they are only sold through bookBlockSeat from then on
+    // Seats in the block that are already booked stay booked. 0 gives the block back to everyone
+    public void allocateBlock(int seats) 
+    {
+        setPolicy(new BookingPolicy(getSeatMap(), seats));
+    }
+
+    // Books the first free seat in the company's block
+    public Booking bookBlockSeat(Passenger passenger) 
+    {
+        return bookFromPool(passenger, BookingPolicy.BLOCK);
+    }
+
+    // Charter flights also show the company
+    @Override
+    public void appendDetails(StringBuilder out, int availableSeats, long fareCents) 
+    {
+        super.appendDetails(out, availableSeats, fareCents);
+        out.append("  Company: ").append(getCharterCompany());
+    }
+}
+
+// FlightIndex keeps hash maps next to the flights list so lookups don't have to scan every flight and passenger
+// It is kept up to date by listening to every booking
+class FlightIndex implements BookingListener 
+{
+    // flight number -> flight
+    private ConcurrentHashMap<String, Flight> flightsByNumber = new ConcurrentHashMap<>();
+    // normalized passport number -> every booking made with that passport
+    private ConcurrentHashMap<String, List<Booking>> bookingsByPassport = new ConcurrentHashMap<>();
+    // booking reference -> booking
+    private ConcurrentHashMap<Long, Booking> bookingsById = new ConcurrentHashMap<>();
+    // Where lookup counts and timings go, null when nothing is measured
+    private volatile Metrics metrics;
+
+    public void setMetrics(Metrics metrics) 
+    {
+        this.metrics = metrics;
+    }
+
+    // Adds a flight so it can be found by its number
+    public void addFlight(Flight flight) 
+    {
+        flightsByNumber.put(flight.getFlightNumber(), flight);
+    }
+
+    // Returns the flight with the given number, or null if there is none
+    public Flight findFlight(String flightNumber) 
+    {
+        Metrics current = metrics;
+        if (current == null)
+        {
+            return flightsByNumber.get(flightNumber);
+        }
+        long start = current.startTimer();
+        Flight flight = flightsByNumber.get(flightNumber);
+        current.recordFlightLookup(start, flight != null);
+        return flight;
+    }
+
+    // Returns the flight with the given number if it leaves on the given day, otherwise null
+    // A flight number alone only names a flight for one run: the same number is on another day after a restart or with another --date
+    public Flight findDeparture(String flightNumber, LocalDate departureDate) 
+    {
+        Flight flight = flightsByNumber.get(flightNumber);
+        return flight != null && flight.getDepartureDate().equals(departureDate) ? flight : null;
+    }
+
+    // Returns all bookings made with the given passport number (ignoring case), or an empty list
+    public List<Booking> findBookings(String passportNumber) 
+    {
+        Metrics current = metrics;
+        long start = current == null ? 0 : current.startTimer();
+        List<Booking> bookings = bookingsByPassport.get(normalizePassport(passportNumber));
+        if (current != null)
+        {
+            current.recordPassengerLookup(start, bookings != null && !bookings.isEmpty());
+        }
+        if (bookings == null)
+        {
+            return Collections.emptyList();
+        }
+        return bookings;
+    }
+
+    // The same without counting it as a lookup, for checks made while booking
+    List<Booking> bookingsFor(String passportNumber) 
+    {
+        List<Booking> bookings = bookingsByPassport.get(normalizePassport(passportNumber));
+        return bookings == null ? Collections.emptyList() : bookings;
+    }
+
+    // Returns the booking with the given reference, or null if there is none (or it was cancelled)
+    public Booking findBooking(long id) 
+    {
+        return bookingsById.get(id);
+    }
+
+    @Override
+    public void onBooking(Booking booking) 
+    {
+        // Most passports only have a handful of bookings, so a copy-on-write list per passport is cheap and safe to read while booking
+        String key = normalizePassport(booking.getPassenger().getPassportNumber());
+        bookingsByPassport.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(booking);
+        bookingsById.put(booking.getId(), booking);
+    }
+
+    @Override
+    public void onCancellation(Booking booking) 
+    {
+        bookingsById.remove(booking.getId());
+        List<Booking> bookings = bookingsByPassport.get(normalizePassport(booking.getPassenger().getPassportNumber()));
+        if (bookings != null)
+        {
+            bookings.remove(booking);
+        }
+    }
+
+    // Passport numbers are matched ignoring case, so they are all stored in upper case
+    public static String normalizePassport(String passportNumber) 
+    {
+        return passportNumber.toUpperCase(Locale.ROOT);
+    }
+}
+
+// Thrown when a booking is refused because the passenger is already booked on the flight, or on another flight at the same time
+class BookingConflictException extends IllegalStateException 
+{
+    private static final long serialVersionUID = 1L;
+
+    // Bookings aren't serializable, so the conflict is left out if the exception is
+    private transient Booking conflict;
+
+    // Constructor for BookingConflictException
+    public BookingConflictException(String message, Booking conflict) 
+    {
+        super(message);
+        this.conflict = conflict;
+    }
+
+    // The booking it clashes with, or null if it clashes with another request in the same batch
+    public Booking getConflict() 
+    {
+        return conflict;
+    }
+}
+
+// BookingGuard stops one passport being booked twice on a flight, or on two flights that are in the air at the same time
+// The exact answer comes from the passport's bookings in the FlightIndex: one hash lookup and a look at the few bookings one
+// passenger has, however full the flights get. Most passports being booked have no bookings yet, so a Bloom filter of every
+// passport ever booked is asked first, and if it has never seen the passport there is nothing to look up
+// Bits can't be taken out of the filter, so a cancelled passport just goes on getting the exact check
+// The check and the booking happen under a lock for the passport (one of STRIPES, picked by its hash), so two threads
+// booking the same passport can't both get through, and by the time the lock is released the filter and index have the booking
+class BookingGuard implements BookingListener 
+{
+    private static final int STRIPES = 1024;
+    private static final int HASHES = 5;
+    private FlightIndex index;
+    private AtomicLongArray bits;
+    private int mask;
+    private ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    // Constructor for BookingGuard. The filter gets 10 to 20 bits per passport, under 1% false positives up to expectedPassports
+    public BookingGuard(FlightIndex index, int expectedPassports) 
+    {
+        this.index = index;
+        int size = Math.max(64, Integer.highestOneBit(Math.max(1, expectedPassports * 10 - 1)) << 1);
+        this.bits = new AtomicLongArray(size / 64);
+        this.mask = size - 1;
+        for (int i = 0; i < STRIPES; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // Locks the passport, checking and booking it must happen before unlock
+    public ReentrantLock lock(String passportNumber) 
+    {
+        ReentrantLock lock = locks[stripe(hash(passportNumber))];
+        lock.lock();
+        return lock;
+    }
+
+    // Locks every passport in the batch, in stripe order so two batches can't wait for each other
+    public List<ReentrantLock> lock(List<BookingRequest> requests) 
+    {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (BookingRequest request : requests)
+        {
+            stripes.add(stripe(hash(request.getPassenger().getPassportNumber())));
+        }
+        ArrayList<ReentrantLock> held = new ArrayList<>(stripes.size());
+        for (int stripe : stripes)
+        {
+            locks[stripe].lock();
+            held.add(locks[stripe]);
+        }
+        return held;
+    }
+
+    public static void unlock(List<ReentrantLock> held) 
+    {
+        for (ReentrantLock lock : held)
+        {
+            lock.unlock();
+        }
+    }
+
+    // Throws BookingConflictException if the passenger has a booking on the flight or on one that overlaps it
+    // replacing is a booking the new one is going to take the place of (a change of booking), it doesn't count, null if there is none
+    public void check(Passenger passenger, Flight flight, Booking replacing) 
+    {
+        String passportNumber = passenger.getPassportNumber();
+        if (!mightContain(hash(passportNumber)))
+        {
+            return;
+        }
+        for (Booking booking : index.bookingsFor(passportNumber))
+        {
+            if (booking != replacing && clashes(booking.getFlight(), flight))
+            {
+                throw new BookingConflictException("Passport " + passportNumber + " is already booked on flight "
+                                                   + booking.getFlight().getFlightNumber()
+                                                   + (booking.getFlight() == flight ? "" : ", which overlaps it")
+                                                   + " (booking reference " + booking.getId() + ")", booking);
+            }
+        }
+    }
+
+    // The same for every request of a batch, including against each other
+    public void check(List<BookingRequest> requests) 
+    {
+        HashMap<String, List<Flight>> batch = new HashMap<>();
+        for (BookingRequest request : requests)
+        {
+            check(request.getPassenger(), request.getFlight(), null);
+            String passportNumber = request.getPassenger().getPassportNumber();
+            List<Flight> others = batch.computeIfAbsent(FlightIndex.normalizePassport(passportNumber), k -> new ArrayList<>(1));
+            for (Flight other : others)
+            {
+                if (clashes(other, request.getFlight()))
+                {
+                    throw new BookingConflictException("Passport " + passportNumber + " is in the batch twice, on flights "
+                                                       + other.getFlightNumber() + " and " + request.getFlight().getFlightNumber(), null);
+                }
+            }
+            others.add(request.getFlight());
+        }
+    }
+
+    // The same flight, or both in the air at some moment. One landing exactly when the other leaves is not a clash
+    private static boolean clashes(Flight a, Flight b) 
+    {
+        return a == b || (a.getDepartureEpochSecond() < b.getArrivalEpochSecond() && b.getDepartureEpochSecond() < a.getArrivalEpochSecond());
+    }
+
+    @Override
+    public void onBooking(Booking booking) 
+    {
+        long hash = hash(booking.getPassenger().getPassportNumber());
+        for (int i = 0; i < HASHES; i++)
+        {
+            int bit = bit(hash, i);
+            long word = bits.get(bit >>> 6);
+            if ((word & (1L << bit)) == 0)
+            {
+                bits.getAndUpdate(bit >>> 6, w -> w | (1L << bit));
+            }
+        }
+    }
+
+    private boolean mightContain(long hash) 
+    {
+        for (int i = 0; i < HASHES; i++)
+        {
+            int bit = bit(hash, i);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The i-th bit for a hash, from its two halves (h1 + i * h2), which is as good as HASHES separate hash functions
+    private int bit(long hash, int i) 
+    {
+        return ((int) hash + i * ((int) (hash >>> 32) | 1)) & mask;
+    }
+
+    private static int stripe(long hash) 
+    {
+        return (int) (hash >>> 54) & (STRIPES - 1);
+    }
+
+    // The passport's hash, ignoring case like the index does, with the bits mixed (MurmurHash3's finalizer) so similar passports spread out
+    private static long hash(String passportNumber) 
+    {
+        long hash = FlightIndex.normalizePassport(passportNumber).hashCode() * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
+
+// NameIndex finds bookings by passenger name, by prefix and allowing for typos, without going through the passenger lists
+// Names are split into words and each word is put in a trie, so "Ann Lee" can be found as "ann", "le" or "lee ann",
+// and common words like first names share one path. Words are normalized first: lower case, accents and punctuation dropped
+// A query word matches a name word that starts with it, or, failing that, one that is a few edits away from it
+// (1 for words of 3 to 5 letters, 2 for longer ones), found by walking the trie with one row of the edit distance table per level
+// Bookings and cancellations update the trie as they happen. Searches share a read lock, updates take the write lock
+class NameIndex implements BookingListener 
+{
+    // One letter of the trie. Children are kept sorted by letter in two small arrays, bookings only on nodes that end a word
+    private static class Node 
+    {
+        private static final char[] NO_LETTERS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+        char[] letters = NO_LETTERS;
+        Node[] children = NO_CHILDREN;
+        Set<Booking> bookings;
+
+        Node child(char letter) 
+        {
+            int i = Arrays.binarySearch(letters, letter);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node addChild(char letter) 
+        {
+            int i = Arrays.binarySearch(letters, letter);
+            if (i >= 0)
+            {
+                return children[i];
+            }
+            i = -i - 1;
+            char[] grownLetters = new char[letters.length + 1];
+            Node[] grownChildren = new Node[children.length + 1];
+            System.arraycopy(letters, 0, grownLetters, 0, i);
+            System.arraycopy(children, 0, grownChildren, 0, i);
+            System.arraycopy(letters, i, grownLetters, i + 1, letters.length - i);
+            System.arraycopy(children, i, grownChildren, i + 1, children.length - i);
+            grownLetters[i] = letter;
+            grownChildren[i] = new Node();
+            letters = grownLetters;
+            children = grownChildren;
+            return grownChildren[i];
+        }
+    }
+
+    private Node root = new Node();
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public void onBooking(Booking booking) 
+    {
+        String[] words = words(booking.getPassenger().getName());
+        lock.writeLock().lock();
+        try
+        {
+            for (String word : words)
+            {
+                Node node = root;
+                for (int i = 0; i < word.length(); i++)
+                {
+                    node = node.addChild(word.charAt(i));
+                }
+                if (node.bookings == null)
+                {
+                    // Compared by identity, so a set holds one entry per booking and removing one is O(1)
+                    node.bookings = Collections.newSetFromMap(new IdentityHashMap<>());
+                }
+                node.bookings.add(booking);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onCancellation(Booking booking) 
+    {
+        String[] words = words(booking.getPassenger().getName());
+        lock.writeLock().lock();
+        try
+        {
+            for (String word : words)
+            {
+                Node node = find(word);
+                if (node != null && node.bookings != null)
+                {
+                    node.bookings.remove(booking);
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Up to limit bookings whose name matches every word of the query, on the given flight or on any flight if it is null
+    // Bookings where every word matches by prefix come before ones that needed typos to match
+    public List<Booking> search(String query, Flight flight, int limit) 
+    {
+        String[] words = words(query);
+        if (words.length == 0)
+        {
+            return Collections.emptyList();
+        }
+        // The longest word picks the candidates, since it matches the fewest names. The other words are checked on each one
+        String longest = words[0];
+        for (String word : words)
+        {
+            if (word.length() > longest.length())
+            {
+                longest = word;
+            }
+        }
+
+        Set<Booking> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayList<Booking> results = new ArrayList<>();
+        lock.readLock().lock();
+        try
+        {
+            Node prefix = find(longest);
+            if (prefix != null)
+            {
+                collect(prefix, words, flight, limit, found, results);
+            }
+            int maxDistance = maxDistance(longest);
+            if (maxDistance > 0 && results.size() < limit)
+            {
+                int[] firstRow = new int[longest.length() + 1];
+                for (int i = 0; i < firstRow.length; i++)
+                {
+                    firstRow[i] = i;
+                }
+                for (int i = 0; i < root.letters.length && results.size() < limit; i++)
+                {
+                    searchSimilar(root.children[i], root.letters[i], longest, firstRow, maxDistance, words, flight, limit, found, results);
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    // Adds the bookings of every word under node, i.e every word that starts with the prefix that leads to node
+    private void collect(Node node, String[] words, Flight flight, int limit, Set<Booking> found, ArrayList<Booking> results) 
+    {
+        addMatches(node, words, flight, limit, found, results);
+        for (int i = 0; i < node.children.length && results.size() < limit; i++)
+        {
+            collect(node.children[i], words, flight, limit, found, results);
+        }
+    }
+
+    // One step of the edit distance walk: row[i] is the distance between the word leading to node and the first i letters of target
+    // A branch is given up as soon as every entry in its row is over the limit, since going deeper can only make it worse
+    private void searchSimilar(Node node, char letter, String target, int[] previousRow, int maxDistance, String[] words,
+                               Flight flight, int limit, Set<Booking> found, ArrayList<Booking> results) 
+    {
+        int[] row = new int[previousRow.length];
+        row[0] = previousRow[0] + 1;
+        int smallest = row[0];
+        for (int i = 1; i < row.length; i++)
+        {
+            int substitution = previousRow[i - 1] + (target.charAt(i - 1) == letter ? 0 : 1);
+            row[i] = Math.min(substitution, Math.min(row[i - 1] + 1, previousRow[i] + 1));
+            smallest = Math.min(smallest, row[i]);
+        }
+        if (smallest > maxDistance)
+        {
+            return;
+        }
+        if (row[row.length - 1] <= maxDistance)
+        {
+            addMatches(node, words, flight, limit, found, results);
+        }
+        for (int i = 0; i < node.children.length && results.size() < limit; i++)
+        {
+            searchSimilar(node.children[i], node.letters[i], target, row, maxDistance, words, flight, limit, found, results);
+        }
+    }
+
+    // Adds the node's bookings that are on the flight and match the other words of the query
+    private static void addMatches(Node node, String[] words, Flight flight, int limit, Set<Booking> found, ArrayList<Booking> results) 
+    {
+        if (node.bookings == null)
+        {
+            return;
+        }
+        for (Booking booking : node.bookings)
+        {
+            if (results.size() >= limit)
+            {
+                return;
+            }
+            if ((flight == null || booking.getFlight() == flight) && !found.contains(booking)
+                && (words.length == 1 || matchesAll(words, words(booking.getPassenger().getName()))))
+            {
+                found.add(booking);
+                results.add(booking);
+            }
+        }
+    }
+
+    // True if every query word matches one of the name's words
+    private static boolean matchesAll(String[] queryWords, String[] nameWords) 
+    {
+        for (String queryWord : queryWords)
+        {
+            boolean matched = false;
+            for (String nameWord : nameWords)
+            {
+                if (nameWord.startsWith(queryWord) || editDistance(queryWord, nameWord, maxDistance(queryWord)) <= maxDistance(queryWord))
+                {
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Edit distance between a and b, or limit + 1 as soon as it is known to be more than limit
+    static int editDistance(String a, String b, int limit) 
+    {
+        if (Math.abs(a.length() - b.length()) > limit)
+        {
+            return limit + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j < previous.length; j++)
+        {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++)
+        {
+            current[0] = i;
+            int smallest = i;
+            for (int j = 1; j <= b.length(); j++)
+            {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(current[j - 1] + 1, previous[j] + 1));
+                smallest = Math.min(smallest, current[j]);
+            }
+            if (smallest > limit)
+            {
+                return limit + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    // How many typos a query word may have. Very short words have to match exactly, there are too many near misses
+    private static int maxDistance(String word) 
+    {
+        return word.length() < 3 ? 0 : word.length() <= 5 ? 1 : 2;
+    }
+
+    // The node at the end of the word, or null if no indexed word starts with it
+    private Node find(String word) 
+    {
+        Node node = root;
+        for (int i = 0; i < word.length() && node != null; i++)
+        {
+            node = node.child(word.charAt(i));
+        }
+        return node;
+    }
+
+    // Splits a name into normalized words: lower case letters only, with accents taken off (so Rene also finds it spelled with an accent)
+    static String[] words(String name) 
+    {
+        String text = name;
+        for (int i = 0; i < text.length(); i++)
+        {
+            if (text.charAt(i) >= 128)
+            {
+                text = Normalizer.normalize(text, Normalizer.Form.NFD);
+                break;
+            }
+        }
+        ArrayList<String> words = new ArrayList<>(2);
+        StringBuilder word = new StringBuilder(16);
+        for (int i = 0; i <= text.length(); i++)
+        {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetter(c))
+            {
+                word.append(Character.toLowerCase(c));
+            }
+            else if ((Character.isWhitespace(c) || c == '-') && word.length() > 0)
+            {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+            // Anything else (accents, apostrophes, dots) is dropped, so O'Neil is oneil and Smith-Jones is smith jones
+        }
+        return words.toArray(new String[0]);
+    }
+}
+
+// A PricingEngine decides what a seat on a flight costs right now
+interface PricingEngine 
+{
+    // price in paise for one seat, given how many minutes are left until the flight leaves
+    long priceCents(Flight flight, int minutesToDeparture);
+}
+
+// LoadFactorPricing puts each flight in a fare bucket by how full it is, and adds a surcharge close to departure
+// All the maths is done on whole paise and basis points (1/100 of a percent), so there is no floating point rounding
+class LoadFactorPricing implements PricingEngine 
+{
+    // A flight that is less than LOAD_LIMITS[i] percent full sells at LOAD_MULTIPLIERS[i] basis points of its base fare
+    private static final int[] LOAD_LIMITS = { 50, 75, 90, 101 };
+    private static final int[] LOAD_MULTIPLIERS = { 10000, 11500, 13500, 16000 };
+    // Surcharges for the last few hours before departure
+    private static final int LAST_MINUTE = 2 * 60;
+    private static final int LAST_MINUTE_MULTIPLIER = 13000;
+    private static final int SAME_DAY = 6 * 60;
+    private static final int SAME_DAY_MULTIPLIER = 11000;
+
+    @Override
+    public long priceCents(Flight flight, int minutesToDeparture) 
+    {
+        int totalSeats = flight.getTotalSeats();
+        int loadPercent = totalSeats == 0 ? 100 : (totalSeats - flight.getAvailableSeats()) * 100 / totalSeats;
+        int bucket = 0;
+        while (bucket < LOAD_LIMITS.length - 1 && loadPercent >= LOAD_LIMITS[bucket])
+        {
+            bucket++;
+        }
+        long price = applyBasisPoints(flight.getBaseFareCents(), LOAD_MULTIPLIERS[bucket]);
+        if (minutesToDeparture < LAST_MINUTE)
+        {
+            price = applyBasisPoints(price, LAST_MINUTE_MULTIPLIER);
+        }
+        else if (minutesToDeparture < SAME_DAY)
+        {
+            price = applyBasisPoints(price, SAME_DAY_MULTIPLIER);
+        }
+        return price;
+    }
+
+    // cents * basisPoints / 10000, rounded to the nearest paisa
+    private static long applyBasisPoints(long cents, int basisPoints) 
+    {
+        return (cents * basisPoints + 5000) / 10000;
+    }
+}
+
+// FareQuotes remembers the price of each flight for a short while, so a page quoting thousands of flights
+// doesn't work every price out again. A flight's quote is dropped as soon as a seat on it is booked, since that can change its price
+// Dropping it means putting a new STALE entry in its place rather than removing it, and a price is only kept if the entry it
+// was worked out after is still there. So a price worked out before a booking and stored after it never gets kept
+class FareQuotes implements BookingListener 
+{
+    // A price and when it stops being valid (System.nanoTime), or a dropped one if cents is STALE
+    private static class Quote 
+    {
+        static final long STALE = -1;
+
+        final long cents;
+        final long expiresAt;
+
+        Quote(long cents, long expiresAt) 
+        {
+            this.cents = cents;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private PricingEngine engine;
+    private long timeToLiveNanos;
+    private Clock clock;
+    private ConcurrentHashMap<Flight, Quote> quotes = new ConcurrentHashMap<>();
+
+    // Constructor for FareQuotes. The clock gives the time used to work out how long until each flight leaves
+    public FareQuotes(PricingEngine engine, long timeToLiveMillis, Clock clock) 
+    {
+        this.engine = engine;
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        this.clock = clock;
+    }
+
+    // The current price of a seat on the flight, in paise
+    public long quote(Flight flight) 
+    {
+        long now = System.nanoTime();
+        Quote quote = quotes.get(flight);
+        if (quote != null && quote.cents != Quote.STALE && now - quote.expiresAt < 0)
+        {
+            return quote.cents;
+        }
+        long cents = engine.priceCents(flight, minutesToDeparture(flight));
+        // Quotes are compared by identity, so this fails if a booking dropped the quote meanwhile, and the price is just not kept
+        Quote priced = new Quote(cents, now + timeToLiveNanos);
+        if (quote == null)
+        {
+            quotes.putIfAbsent(flight, priced);
+        }
+        else
+        {
+            quotes.replace(flight, quote, priced);
+        }
+        return cents;
+    }
+
+    @Override
+    public void onBooking(Booking booking) 
+    {
+        drop(booking.getFlight());
+    }
+
+    @Override
+    public void onCancellation(Booking booking) 
+    {
+        drop(booking.getFlight());
+    }
+
+    @Override
+    public void onBatch(List<Booking> bookings) 
+    {
+        Flight last = null;
+        for (Booking booking : bookings)
+        {
+            // Batches are usually grouped by flight, so this skips most of the repeats
+            if (booking.getFlight() != last)
+            {
+                last = booking.getFlight();
+                drop(last);
+            }
+        }
+    }
+
+    // Replaces the flight's quote with a new stale one, a new object each time so a quote worked out before this can't replace it
+    private void drop(Flight flight) 
+    {
+        quotes.put(flight, new Quote(Quote.STALE, 0));
+    }
+
+    // Time until the flight's scheduled departure, 0 once it has left
+    private int minutesToDeparture(Flight flight) 
+    {
+        long minutes = (flight.getDepartureEpochSecond() - clock.instant().getEpochSecond()) / 60;
+        return (int) Math.max(0, Math.min(minutes, Integer.MAX_VALUE));
+    }
+
+    // Writes an amount in paise as rupees with two decimals, e.g. 500050 -> 5000.50
+    public static void appendCents(StringBuilder out, long cents) 
+    {
+        if (cents < 0)
+        {
+            out.append('-');
+            cents = -cents;
+        }
+        long paise = cents % 100;
+        out.append(cents / 100).append('.');
+        if (paise < 10)
+        {
+            out.append('0');
+        }
+        out.append(paise);
+    }
+
+    public static String format(long cents) 
+    {
+        StringBuilder out = new StringBuilder(16);
+        appendCents(out, cents);
+        return out.toString();
+    }
+}
+
+// FlightSnapshot is one flight as it was when an InventorySnapshot was taken: its free seats, its price and its bookings
+// Nothing in it changes afterwards, so a listing made from it is consistent however many bookings happen meanwhile
+class FlightSnapshot 
+{
+    private Flight flight;
+    private int availableSeats;
+    private long fareCents;
+    private List<Booking> bookings;
+
+    // Constructor for FlightSnapshot, takes the flight's current state
+    // The free seats are worked out from the same copy of the manifest as the bookings, not read from the seat map, which
+    // runs a little ahead of the manifest while a booking is being made, so the row always agrees with its passenger list
+    public FlightSnapshot(Flight flight) 
+    {
+        Manifest.View view = flight.getManifestView();
+        this.flight = flight;
+        this.bookings = Collections.unmodifiableList(Arrays.asList(view.bookings));
+        this.availableSeats = flight.getTotalSeats() - view.seatedCount;
+        this.fareCents = flight.getFareCents();
+    }
+
+    // Getters for FlightSnapshot
+    public Flight getFlight() 
+    {
+        return flight;
+    }
+
+    public int getAvailableSeats() 
+    {
+        return availableSeats;
+    }
+
+    public long getFareCents() 
+    {
+        return fareCents;
+    }
+
+    public List<Booking> getBookings() 
+    {
+        return bookings;
+    }
+
+    // The same text as the flight's displayDetails, with the seats and fare from the snapshot
+    public void appendDetails(StringBuilder out) 
+    {
+        flight.appendDetails(out, availableSeats, fareCents);
+    }
+}
+
+// An InventorySnapshot is every flight as it was at one moment. Its version goes up by one for every snapshot published
+class InventorySnapshot 
+{
+    private long version;
+    private List<FlightSnapshot> flights;
+
+    // Constructor for InventorySnapshot
+    public InventorySnapshot(long version, List<FlightSnapshot> flights) 
+    {
+        this.version = version;
+        this.flights = flights;
+    }
+
+    public long getVersion() 
+    {
+        return version;
+    }
+
+    public List<FlightSnapshot> getFlights() 
+    {
+        return flights;
+    }
+}
+
+// Inventory hands out snapshots of all the flights for listings, so reading never blocks booking or the other way round
+// A booking only marks the current snapshot as out of date; the next reader builds a new one and every reader after it
+// shares that one until the next booking. However many bookings (or whole batches) happen between two reads, only one
+// snapshot is built for them, and each flight's booking list in it is the array its Manifest already keeps for readers
+// Readers don't wait for each other either: while one of them builds the new snapshot, the others get the last one published,
+// which is at most one rebuild behind. Only before the first snapshot is published do they wait for it
+class Inventory implements BookingListener 
+{
+    private CopyOnWriteArrayList<Flight> flights = new CopyOnWriteArrayList<>();
+    private volatile InventorySnapshot published = new InventorySnapshot(0, Collections.emptyList());
+    private volatile boolean stale;
+    // Held by the reader building the next snapshot
+    private ReentrantLock rebuilding = new ReentrantLock();
+
+    // Adds a flight, it shows up in the next snapshot
+    public void addFlight(Flight flight) 
+    {
+        flights.add(flight);
+        stale = true;
+    }
+
+    // The latest snapshot. Without bookings since the last call this is just a volatile read
+    public InventorySnapshot snapshot() 
+    {
+        InventorySnapshot current = published;
+        if (!stale)
+        {
+            return current;
+        }
+        if (!rebuilding.tryLock())
+        {
+            if (current.getVersion() > 0)
+            {
+                return current;
+            }
+            rebuilding.lock();
+        }
+        try
+        {
+            if (!stale)
+            {
+                return published;
+            }
+            // Cleared before the flights are read, so a booking made while this snapshot is built makes it stale again
+            stale = false;
+            ArrayList<FlightSnapshot> snapshots = new ArrayList<>(flights.size());
+            for (Flight flight : flights)
+            {
+                snapshots.add(new FlightSnapshot(flight));
+            }
+            published = new InventorySnapshot(published.getVersion() + 1, Collections.unmodifiableList(snapshots));
+            return published;
+        }
+        finally
+        {
+            rebuilding.unlock();
+        }
+    }
+
+    @Override
+    public void onBooking(Booking booking) 
+    {
+        stale = true;
+    }
+
+    @Override
+    public void onBatch(List<Booking> bookings) 
+    {
+        stale = true;
+    }
+
+    @Override
+    public void onCancellation(Booking booking) 
+    {
+        stale = true;
+    }
+}
+
+// ListingWriter builds long listings (all flights, all passenger lists) in one reusable buffer and writes it out in
+// big pieces, instead of making a separate console write for every field of every row
+// It can write to the console or to any Writer, e.g. a file for a passenger list export
+class ListingWriter 
+{
+    // The buffer is written out whenever it grows past this, so exporting millions of passengers needs no more memory than this
+    private static final int FLUSH_SIZE = 64 * 1024;
+
+    private Writer out;
+    private StringBuilder buffer = new StringBuilder(FLUSH_SIZE + 1024);
+    // The buffer's characters are copied here to be written, so no String is made per write
+    private char[] chunk = new char[FLUSH_SIZE];
+
+    // Constructor for ListingWriter
+    public ListingWriter(Writer out) 
+    {
+        this.out = out;
+    }
+
+    // A ListingWriter for the console. Flushing it doesn't close System.out
+    public static ListingWriter toConsole() 
+    {
+        return new ListingWriter(new OutputStreamWriter(System.out));
+    }
+
+    // Adds a line of text
+    public ListingWriter line(String text) 
+    {
+        buffer.append(text).append('\n');
+        return spill();
+    }
+
+    // Adds the same text as the flight's displayDetails
+    public ListingWriter flight(Flight flight) 
+    {
+        flight.appendDetails(buffer);
+        return spill();
+    }
+
+    // The same, as the flight was in the snapshot
+    public ListingWriter flight(FlightSnapshot flight) 
+    {
+        flight.appendDetails(buffer);
+        return spill();
+    }
+
+    // Adds the same text as the passenger's displayDetails
+    public ListingWriter passenger(Passenger passenger) 
+    {
+        passenger.appendTo(buffer);
+        buffer.append('\n');
+        return spill();
+    }
+
+    // Adds a flight's passenger list, as shown by "Display all passengers"
+    public ListingWriter manifest(FlightSnapshot snapshot) 
+    {
+        Flight flight = snapshot.getFlight();
+        buffer.append("Flight Number: ").append(flight.getFlightNumber()).append('\n');
+        buffer.append("Source: ").append(flight.getSource()).append('\n');
+        buffer.append("Destination: ").append(flight.getDestination()).append('\n');
+        buffer.append("Passengers:\n");
+        for (Booking booking : snapshot.getBookings())
+        {
+            passenger(booking.getPassenger());
+        }
+        return line("-----------------------------------");
+    }
+
+    // Writes out everything that is still in the buffer
+    public void flush() 
+    {
+        write();
+        try
+        {
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Writes the buffer out once it is big enough, so the output is done in a few large writes
+    private ListingWriter spill() 
+    {
+        if (buffer.length() >= FLUSH_SIZE)
+        {
+            write();
+        }
+        return this;
+    }
+
+    private void write() 
+    {
+        try
+        {
+            for (int start = 0; start < buffer.length(); start += chunk.length)
+            {
+                int end = Math.min(start + chunk.length, buffer.length());
+                buffer.getChars(start, end, chunk, 0);
+                out.write(chunk, 0, end - start);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        buffer.setLength(0);
+    }
+}
+
+// An Itinerary is one way of getting from a source to a destination, either direct or through connecting flights
+class Itinerary implements Displayable 
+{
+    private List<Flight> legs;
+
+    // Constructor for Itinerary
+    public Itinerary(List<Flight> legs) 
+    {
+        this.legs = legs;
+    }
+
+    // Getters for Itinerary
+    public List<Flight> getLegs() 
+    {
+        return legs;
+    }
+
+    public int getStops() 
+    {
+        return legs.size() - 1;
+    }
+
+    // When the first flight leaves and the last one lands, in seconds since 1970 (UTC)
+    public long getDepartureEpochSecond() 
+    {
+        return legs.get(0).getDepartureEpochSecond();
+    }
+
+    public long getArrivalEpochSecond() 
+    {
+        return legs.get(legs.size() - 1).getArrivalEpochSecond();
+    }
+
+    public int getDurationMinutes() 
+    {
+        return (int) ((getArrivalEpochSecond() - getDepartureEpochSecond()) / 60);
+    }
+
+    // Displaying the route summary followed by every flight in it
+    @Override
+    public void displayDetails() 
+    {
+        StringBuilder route = new StringBuilder(legs.get(0).getSource());
+        for (Flight leg : legs)
+        {
+            route.append(" -> ").append(leg.getDestination());
+        }
+        System.out.println("");
+        System.out.print("Route: " + route);
+        System.out.print("  Stops: " + getStops());
+        System.out.print("  Total Time: " + (getDurationMinutes() / 60) + "h " + (getDurationMinutes() % 60) + "m");
+        for (Flight leg : legs)
+        {
+            leg.displayDetails();
+        }
+        System.out.println("");
+    }
+}
+
+// Schedule turns the times in the timetable into instants
+// A time is local to its airport: departures are in the source's time zone and arrivals in the destination's
+// It is either HH:mm, on whatever date the flight is scheduled for, or a full date and time like 2026-10-18T22:00
+// Every airport is taken to be in India unless setZone says otherwise
+final class Schedule 
+{
+    public static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Kolkata");
+    // airport (lower case) -> its time zone, for the ones not in DEFAULT_ZONE
+    private static final ConcurrentHashMap<String, ZoneId> zones = new ConcurrentHashMap<>();
+
+    private Schedule() 
+    {
+    }
+
+    public static ZoneId zoneOf(String airport) 
+    {
+        return zones.getOrDefault(airport.toLowerCase(Locale.ROOT), DEFAULT_ZONE);
+    }
+
+    public static void setZone(String airport, ZoneId zone) 
+    {
+        zones.put(airport.toLowerCase(Locale.ROOT), zone);
+    }
+
+    // True if the time has its own date, i.e it is not a plain HH:mm
+    public static boolean isDated(String time) 
+    {
+        return time.indexOf('T') >= 0;
+    }
+
+    // The instant of a time at an airport in the given zone, in seconds since 1970. Plain HH:mm times are taken on date
+    public static long toEpochSecond(String time, LocalDate date, ZoneId zone) 
+    {
+        if (!isDated(time))
+        {
+            int minutes = toMinutes(time);
+            return date.atTime(minutes / 60, minutes % 60).atZone(zone).toEpochSecond();
+        }
+        try
+        {
+            return LocalDateTime.parse(time.trim()).atZone(zone).toEpochSecond();
+        }
+        catch (DateTimeException e)
+        {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+    }
+
+    // Converts a "HH:mm" time into minutes after midnight
+    public static int toMinutes(String time) 
+    {
+        int colon = time.indexOf(':');
+        if (colon < 0)
+        {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        int hours;
+        int minutes;
+        try
+        {
+            hours = Integer.parseInt(time.substring(0, colon).trim());
+            minutes = Integer.parseInt(time.substring(colon + 1).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59)
+        {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        return hours * 60 + minutes;
+    }
+}
+
+// DepartureIndex groups flights by a key (like the airport they leave from) and sorts every group by departure,
+// with the departure instants in a long[] next to the flights, so any time can be found in a group by binary search
+class DepartureIndex 
+{
+    private HashMap<String, Flight[]> flights = new HashMap<>();
+    private HashMap<String, long[]> departures = new HashMap<>();
+
+    // Constructor for DepartureIndex, key gives the group of each flight
+    public DepartureIndex(Collection<Flight> all, Function<Flight, String> key) 
+    {
+        HashMap<String, ArrayList<Flight>> grouped = new HashMap<>();
+        for (Flight flight : all)
+        {
+            grouped.computeIfAbsent(key.apply(flight), k -> new ArrayList<>()).add(flight);
+        }
+        for (Map.Entry<String, ArrayList<Flight>> entry : grouped.entrySet())
+        {
+            ArrayList<Flight> list = entry.getValue();
+            list.sort(Comparator.comparingLong(Flight::getDepartureEpochSecond));
+            Flight[] sorted = list.toArray(new Flight[0]);
+            long[] times = new long[sorted.length];
+            for (int i = 0; i < sorted.length; i++)
+            {
+                times[i] = sorted[i].getDepartureEpochSecond();
+            }
+            flights.put(entry.getKey(), sorted);
+            departures.put(entry.getKey(), times);
+        }
+    }
+
+    // The group's flights in departure order, or null if there are none
+    public Flight[] getFlights(String key) 
+    {
+        return flights.get(key);
+    }
+
+    // The departure instant of each of those flights
+    public long[] getDepartures(String key) 
+    {
+        return departures.get(key);
+    }
+
+    // Up to limit flights of the group leaving at or after epochSecond, soonest first
+    public List<Flight> next(String key, long epochSecond, int limit) 
+    {
+        return between(key, epochSecond, Long.MAX_VALUE, limit);
+    }
+
+    // The flights of the group leaving between from and to (both included), soonest first
+    public List<Flight> between(String key, long from, long to) 
+    {
+        return between(key, from, to, Integer.MAX_VALUE);
+    }
+
+    private List<Flight> between(String key, long from, long to, int limit) 
+    {
+        Flight[] group = flights.get(key);
+        if (group == null)
+        {
+            return Collections.emptyList();
+        }
+        long[] times = departures.get(key);
+        ArrayList<Flight> found = new ArrayList<>();
+        for (int i = firstAtOrAfter(times, from); i < group.length && times[i] <= to && found.size() < limit; i++)
+        {
+            found.add(group[i]);
+        }
+        return found;
+    }
+
+    // Binary search for the first index whose time is >= epochSecond, or times.length if there is none
+    public static int firstAtOrAfter(long[] times, long epochSecond) 
+    {
+        int low = 0;
+        int high = times.length;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < epochSecond)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
+
+// RouteFinder answers "how do I get from X to Y" using direct flights and connections, and "what leaves X next"
+// Flights are grouped by the airport they leave from and sorted by departure,
+// so each step of the search only looks at the flights that leave inside the allowed time window
+class RouteFinder 
+{
+    // Shortest and longest time a passenger can wait between two connecting flights
+    public static final int MIN_CONNECTION_MINUTES = 45;
+    public static final int MAX_LAYOVER_MINUTES = 6 * 60;
+
+    // airport -> flights leaving it
+    private DepartureIndex departures;
+    // The same again but keyed by source and destination together, used for the last flight of a route
+    // so we only look at flights that actually land at the destination
+    private DepartureIndex directFlights;
+
+    // Constructor for RouteFinder, builds the index from the given flights
+    public RouteFinder(Collection<Flight> flights) 
+    {
+        departures = new DepartureIndex(flights, flight -> airportKey(flight.getSource()));
+        directFlights = new DepartureIndex(flights, flight -> pairKey(airportKey(flight.getSource()), airportKey(flight.getDestination())));
+    }
+
+    // Finds every direct and connecting itinerary (up to maxStops connections) from source to destination
+    // whose first flight leaves between earliest and latest (seconds since 1970)
+    // Results are sorted by arrival time, then by number of stops
+    public List<Itinerary> search(String source, String destination, long earliest, long latest, int maxStops) 
+    {
+        ArrayList<Itinerary> results = new ArrayList<>();
+        ArrayList<Flight> path = new ArrayList<>();
+        ArrayList<String> visited = new ArrayList<>();
+        visited.add(airportKey(source));
+        searchFrom(airportKey(source), airportKey(destination), earliest, latest, maxStops, path, visited, results);
+        results.sort(Comparator.comparingLong(Itinerary::getArrivalEpochSecond).thenComparingInt(Itinerary::getStops));
+        return results;
+    }
+
+    // Up to limit flights leaving the airport at or after epochSecond, soonest first
+    public List<Flight> nextDepartures(String airport, long epochSecond, int limit) 
+    {
+        return departures.next(airportKey(airport), epochSecond, limit);
+    }
+
+    // The flights leaving the airport between from and to (seconds since 1970, both included), soonest first
+    public List<Flight> departuresBetween(String airport, long from, long to) 
+    {
+        return departures.between(airportKey(airport), from, to);
+    }
+
+    // Depth first search over the flights leaving airport between earliest and latest
+    // path and visited hold the flights and airports used so far
+    private void searchFrom(String airport, String destination, long earliest, long latest, int stopsLeft,
+                            ArrayList<Flight> path, ArrayList<String> visited, ArrayList<Itinerary> results) 
+    {
+        // On the last flight only flights that land at the destination are of any use
+        DepartureIndex index = stopsLeft == 0 ? directFlights : departures;
+        String key = stopsLeft == 0 ? pairKey(airport, destination) : airport;
+        Flight[] flights = index.getFlights(key);
+        if (flights == null)
+        {
+            return;
+        }
+        long[] times = index.getDepartures(key);
+
+        // Start at the first flight leaving at or after earliest and walk forward until we leave the window
+        // The walk only ever touches flights that are inside the window
+        for (int i = DepartureIndex.firstAtOrAfter(times, earliest); i < flights.length && times[i] <= latest; i++)
+        {
+            Flight flight = flights[i];
+            String next = airportKey(flight.getDestination());
+            if (visited.contains(next))
+            {
+                continue;
+            }
+
+            path.add(flight);
+            if (next.equals(destination))
+            {
+                results.add(new Itinerary(new ArrayList<>(path)));
+            }
+            else if (stopsLeft > 0)
+            {
+                visited.add(next);
+                long arrival = flight.getArrivalEpochSecond();
+                searchFrom(next, destination, arrival + MIN_CONNECTION_MINUTES * 60L, arrival + MAX_LAYOVER_MINUTES * 60L,
+                           stopsLeft - 1, path, visited, results);
+                visited.remove(visited.size() - 1);
+            }
+            path.remove(path.size() - 1);
+        }
+    }
+
+    // Airport names are matched ignoring case
+    private static String airportKey(String airport) 
+    {
+        return airport.toLowerCase(Locale.ROOT);
+    }
+
+    // Key for the source and destination map
+    private static String pairKey(String source, String destination) 
+    {
+        return source + "->" + destination;
+    }
+}
+
+// An aircraft flights can be put on. It starts out at its base airport, or can start anywhere if it has no base
+class Aircraft 
+{
+    private String registration;
+    private String type;
+    private int seats;
+    private String base;
+    // Rows at the front given over to first and business class, see SeatMap
+    private int firstRows;
+    private int businessRows;
+
+    // Constructor for Aircraft, base can be null
+    public Aircraft(String registration, String type, int seats, String base) 
+    {
+        this(registration, type, seats, base, 0, 0);
+    }
+
+    public Aircraft(String registration, String type, int seats, String base, int firstRows, int businessRows) 
+    {
+        this.registration = registration;
+        this.type = type;
+        this.seats = seats;
+        this.base = base;
+        this.firstRows = firstRows;
+        this.businessRows = businessRows;
+    }
+
+    // Getters for Aircraft
+    public String getRegistration() 
+    {
+        return registration;
+    }
+
+    public String getType() 
+    {
+        return type;
+    }
+
+    public int getSeats() 
+    {
+        return seats;
+    }
+
+    public String getBase() 
+    {
+        return base;
+    }
+
+    public int getFirstRows() 
+    {
+        return firstRows;
+    }
+
+    public int getBusinessRows() 
+    {
+        return businessRows;
+    }
+}
+
+// A RotationPlan says which aircraft flies each flight. Flights no aircraft could be found for have none
+class RotationPlan 
+{
+    // The flights in departure order, and the aircraft of each (or null)
+    private Flight[] flights;
+    private Aircraft[] aircraft;
+    private int unassigned;
+    private int aircraftUsed;
+    private long spareSeats;
+
+    // Constructor for RotationPlan, works out how good the plan is
+    public RotationPlan(Flight[] flights, Aircraft[] aircraft) 
+    {
+        this.flights = flights;
+        this.aircraft = aircraft;
+        Set<Aircraft> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < flights.length; i++)
+        {
+            if (aircraft[i] == null)
+            {
+                unassigned++;
+            }
+            else
+            {
+                used.add(aircraft[i]);
+                spareSeats += aircraft[i].getSeats() - flights[i].getTotalSeats();
+            }
+        }
+        this.aircraftUsed = used.size();
+    }
+
+    // Getters for RotationPlan
+    public int getFlightCount() 
+    {
+        return flights.length;
+    }
+
+    public int getUnassignedCount() 
+    {
+        return unassigned;
+    }
+
+    public int getAircraftUsed() 
+    {
+        return aircraftUsed;
+    }
+
+    // Seats flown on top of what the timetable asked for, over all flights
+    public long getSpareSeats() 
+    {
+        return spareSeats;
+    }
+
+    // Most flights covered wins, then fewest aircraft, then fewest spare seats
+    public boolean isBetterThan(RotationPlan other) 
+    {
+        if (unassigned != other.unassigned)
+        {
+            return unassigned < other.unassigned;
+        }
+        if (aircraftUsed != other.aircraftUsed)
+        {
+            return aircraftUsed < other.aircraftUsed;
+        }
+        return spareSeats < other.spareSeats;
+    }
+
+    // Puts every flight on its aircraft, see Flight.assignAircraft
+    public void apply() 
+    {
+        for (int i = 0; i < flights.length; i++)
+        {
+            if (aircraft[i] != null)
+            {
+                flights[i].assignAircraft(aircraft[i]);
+            }
+        }
+    }
+
+    // Writes each aircraft's flights in the order it flies them, then the flights without an aircraft
+    public void appendReport(StringBuilder out) 
+    {
+        LinkedHashMap<Aircraft, List<Flight>> rotations = new LinkedHashMap<>();
+        ArrayList<Flight> without = new ArrayList<>();
+        for (int i = 0; i < flights.length; i++)
+        {
+            if (aircraft[i] == null)
+            {
+                without.add(flights[i]);
+            }
+            else
+            {
+                rotations.computeIfAbsent(aircraft[i], a -> new ArrayList<>()).add(flights[i]);
+            }
+        }
+        out.append("\nAircraft rotations (").append(flights.length - unassigned).append(" of ").append(flights.length)
+           .append(" flights on ").append(aircraftUsed).append(" aircraft):\n");
+        for (Map.Entry<Aircraft, List<Flight>> rotation : rotations.entrySet())
+        {
+            Aircraft plane = rotation.getKey();
+            out.append(plane.getRegistration()).append("  ").append(plane.getType()).append("  Seats: ").append(plane.getSeats()).append('\n');
+            for (Flight flight : rotation.getValue())
+            {
+                out.append("    ").append(flight.getFlightNumber()).append("  ").append(flight.getSource()).append(' ').append(flight.getDepartureTime())
+                   .append(" -> ").append(flight.getDestination()).append(' ').append(flight.getArrivalTime()).append('\n');
+            }
+        }
+        if (!without.isEmpty())
+        {
+            out.append("Flights without an aircraft:");
+            for (Flight flight : without)
+            {
+                out.append(' ').append(flight.getFlightNumber());
+            }
+            out.append('\n');
+        }
+    }
+}
+
+// RotationPlanner puts aircraft on flights. Each aircraft flies a chain of flights, each leaving from where the one before landed,
+// no sooner than the turnaround time after it, and only flights that need no more seats than it has
+// A plan is built greedily in departure order. A flight takes the smallest big enough aircraft out of those waiting at its airport
+// and those based there that haven't flown yet, or failing both, one with no base. Each pass is O(n log n)
+// Taking the tightest fit covers the most flights but brings in new aircraft where one already on the ground would do. So the pass
+// is run many times: run 0 always takes the tightest fit, and run r of n takes an aircraft that is already waiting instead with
+// chance r/n. The best plan is kept: most flights covered, then fewest aircraft, then fewest spare seats
+// The runs are shared out as fork-join tasks, so on a multi-core machine all of them take about as long as a few
+class RotationPlanner 
+{
+    private static final int DEFAULT_RUNS = 32;
+
+    // An aircraft that has landed, and when and where it can fly again
+    private static class Turn 
+    {
+        Aircraft aircraft;
+        String airport;
+        long readyAt;
+
+        Turn(Aircraft aircraft, String airport, long readyAt) 
+        {
+            this.aircraft = aircraft;
+            this.airport = airport;
+            this.readyAt = readyAt;
+        }
+    }
+
+    private long turnaroundSeconds;
+    private int runs;
+
+    // Constructor for RotationPlanner
+    public RotationPlanner(int turnaroundMinutes) 
+    {
+        this(turnaroundMinutes, DEFAULT_RUNS);
+    }
+
+    public RotationPlanner(int turnaroundMinutes, int runs) 
+    {
+        this.turnaroundSeconds = turnaroundMinutes * 60L;
+        this.runs = Math.max(1, runs);
+    }
+
+    // Plans the flights with the fleet. A flight needs an aircraft with at least its getTotalSeats()
+    public RotationPlan plan(List<Flight> flights, List<Aircraft> fleet) 
+    {
+        Flight[] ordered = flights.toArray(new Flight[0]);
+        Arrays.sort(ordered, Comparator.comparingLong(Flight::getDepartureEpochSecond).thenComparing(Flight::getFlightNumber));
+        return ForkJoinPool.commonPool().invoke(new Runs(ordered, fleet, 0, runs));
+    }
+
+    // Runs from..to-1, halved until one is left, and the best of their plans
+    private class Runs extends RecursiveTask<RotationPlan> 
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Flight[] flights;
+        private List<Aircraft> fleet;
+        private int from;
+        private int to;
+
+        Runs(Flight[] flights, List<Aircraft> fleet, int from, int to) 
+        {
+            this.flights = flights;
+            this.fleet = fleet;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected RotationPlan compute() 
+        {
+            if (to - from == 1)
+            {
+                return greedy(flights, fleet, (double) from / runs, new SplittableRandom(from));
+            }
+            int middle = (from + to) >>> 1;
+            Runs first = new Runs(flights, fleet, from, middle);
+            first.fork();
+            RotationPlan second = new Runs(flights, fleet, middle, to).compute();
+            RotationPlan best = first.join();
+            return second.isBetterThan(best) ? second : best;
+        }
+    }
+
+    // One greedy pass. reuse is the chance of taking a waiting aircraft when an unflown one based at the airport fits better
+    private RotationPlan greedy(Flight[] flights, List<Aircraft> fleet, double reuse, SplittableRandom random) 
+    {
+        // Aircraft waiting at each airport by seats, those that haven't flown by base (no base is ""), and those in the air by when they're ready
+        HashMap<String, TreeMap<Integer, ArrayDeque<Aircraft>>> waiting = new HashMap<>();
+        HashMap<String, TreeMap<Integer, ArrayDeque<Aircraft>>> unused = new HashMap<>();
+        PriorityQueue<Turn> turning = new PriorityQueue<>(Comparator.comparingLong(turn -> turn.readyAt));
+        for (Aircraft plane : fleet)
+        {
+            park(unused, plane.getBase() == null ? "" : airportKey(plane.getBase()), plane);
+        }
+
+        Aircraft[] assigned = new Aircraft[flights.length];
+        for (int i = 0; i < flights.length; i++)
+        {
+            Flight flight = flights[i];
+            while (!turning.isEmpty() && turning.peek().readyAt <= flight.getDepartureEpochSecond())
+            {
+                Turn turn = turning.poll();
+                park(waiting, turn.airport, turn.aircraft);
+            }
+            int seats = flight.getTotalSeats();
+            String source = airportKey(flight.getSource());
+            TreeMap<Integer, ArrayDeque<Aircraft>> here = waiting.get(source);
+            TreeMap<Integer, ArrayDeque<Aircraft>> based = unused.get(source);
+            Integer waitingSize = here == null ? null : here.ceilingKey(seats);
+            Integer basedSize = based == null ? null : based.ceilingKey(seats);
+            Aircraft plane;
+            if (basedSize != null && (waitingSize == null || (basedSize < waitingSize && random.nextDouble() >= reuse)))
+            {
+                plane = take(based, basedSize);
+            }
+            else if (waitingSize != null)
+            {
+                plane = take(here, waitingSize);
+            }
+            else
+            {
+                TreeMap<Integer, ArrayDeque<Aircraft>> anywhere = unused.get("");
+                Integer size = anywhere == null ? null : anywhere.ceilingKey(seats);
+                plane = size == null ? null : take(anywhere, size);
+            }
+            if (plane != null)
+            {
+                assigned[i] = plane;
+                turning.add(new Turn(plane, airportKey(flight.getDestination()), flight.getArrivalEpochSecond() + turnaroundSeconds));
+            }
+        }
+        return new RotationPlan(flights, assigned);
+    }
+
+    // Airport names are matched ignoring case, the same as RouteFinder does, so a fleet based at "delhi" flies from "Delhi"
+    private static String airportKey(String airport) 
+    {
+        return airport.toLowerCase(Locale.ROOT);
+    }
+
+    private static void park(HashMap<String, TreeMap<Integer, ArrayDeque<Aircraft>>> pools, String airport, Aircraft plane) 
+    {
+        pools.computeIfAbsent(airport, a -> new TreeMap<>()).computeIfAbsent(plane.getSeats(), s -> new ArrayDeque<>()).addLast(plane);
+    }
+
+    // The aircraft of that size that has waited longest
+    private static Aircraft take(TreeMap<Integer, ArrayDeque<Aircraft>> pool, int size) 
+    {
+        ArrayDeque<Aircraft> planes = pool.get(size);
+        Aircraft plane = planes.pollFirst();
+        if (planes.isEmpty())
+        {
+            pool.remove(size);
+        }
+        return plane;
+    }
+
+    // Reads a fleet from a CSV file, one aircraft per line: registration,type,seats[,base[,firstRows,businessRows]]
+    // Blank lines, lines starting with # and a header line starting with "registration" are skipped
+    // Throws IllegalArgumentException giving the number and text of the bad line if a line can't be read
+    public static List<Aircraft> readFleet(Path file) throws IOException 
+    {
+        ArrayList<Aircraft> fleet = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#") || line.startsWith("registration"))
+                {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                try
+                {
+                    int seats = fields.length >= 3 ? Integer.parseInt(fields[2].trim()) : 0;
+                    if (seats <= 0 || fields[0].isBlank())
+                    {
+                        throw new IllegalArgumentException("missing fields");
+                    }
+                    String base = fields.length > 3 && !fields[3].isBlank() ? fields[3].trim() : null;
+                    int firstRows = fields.length > 5 ? Integer.parseInt(fields[4].trim()) : 0;
+                    int businessRows = fields.length > 5 ? Integer.parseInt(fields[5].trim()) : 0;
+                    if (firstRows < 0 || businessRows < 0)
+                    {
+                        throw new IllegalArgumentException("invalid cabin rows");
+                    }
+                    fleet.add(new Aircraft(fields[0].trim(), fields[1].trim(), seats, base, firstRows, businessRows));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Invalid fleet row on line " + lineNumber + " (invalid number): " + line);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new IllegalArgumentException("Invalid fleet row on line " + lineNumber + " (" + e.getMessage() + "): " + line);
+                }
+            }
+        }
+        return fleet;
+    }
+}
+
+// Thrown when a booking or cancellation can't be saved by the BookingJournal, e.g. the disk failed
+// Whatever it was about has been undone, so the booking is not made (or, for a cancellation, still stands)
+class BookingNotSavedException extends IllegalStateException 
+{
+    private static final long serialVersionUID = 1L;
+
+    // Constructor for BookingNotSavedException, cause is what went wrong on disk, if anything did
+    public BookingNotSavedException(String message, Throwable cause) 
+    {
+        super(message, cause);
+    }
+}
+
+// BookingJournal makes bookings survive a restart
+// Every booking is appended to a journal file as a small checksummed binary record, and every so often all bookings
+// are written out as a snapshot so the journal doesn't grow forever. On start up the newest snapshot is loaded
+// and the journal written after it is replayed on top
+//
+// Files in the data directory:
+//   journal-<n>.log   bookings made while segment n was the current one
+//   snapshot-<n>.dat  every booking made before journal-<n>.log was started
+//
+// Writes are group committed: each booking hands its record to one writer thread and waits, and the writer
+// writes everything that has queued up with a single write and a single fsync, so under load many bookings share one fsync
+// Flight queues a booking's record (see Flight.setBookingJournal) under its manifest lock, right after adding it, and then
+// waits for the ticket it got back. If the record never gets to disk the booking is taken back out and BookingNotSavedException
+// is thrown, so a booking that is reported as made is always one that survives a restart
+class BookingJournal implements Closeable 
+{
+    // Record types. Types 1 and 2 were written before bookings had references (and type 1 before they kept their fare),
+    // they are read back with a new reference and, for type 1, at the base fare
+    private static final byte BOOKING_RECORD = 1;
+    private static final byte FARE_BOOKING_RECORD = 2;
+    private static final byte REFERENCED_BOOKING_RECORD = 3;
+    private static final byte CANCELLATION_RECORD = 4;
+    // A booking that takes the place of another one (see Flight.rebook): a type 3 record with the old reference at the end
+    // Replaying it cancels the old booking, and the old one is never restored after it, so a change is all or nothing
+    private static final byte REBOOKING_RECORD = 5;
+    // What is written now: a type 5 record (the old reference is 0 for a new booking) followed by the day the flight leaves
+    // The booking is only restored if its flight still leaves on that day, so bookings for yesterday's AI101 never end up on
+    // today's. Types 1 to 5 carry no date and are restored onto whatever day their flight is on
+    private static final byte DATED_BOOKING_RECORD = 6;
+    // What is written for a cancellation now: a type 4 record followed by the flight number and the day it leaves, so it can
+    // only cancel the booking it was written for. Type 4 records cancel whatever booking has the reference
+    private static final byte DATED_CANCELLATION_RECORD = 7;
+    // Each record starts with its length and its checksum
+    private static final int HEADER_SIZE = 8;
+    // Records bigger than this can only come from a damaged file
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private File directory;
+    private Collection<Flight> flights;
+    // Number of records after which a new segment is started and a snapshot is taken
+    private long snapshotInterval;
+
+    // Everything below up to the writer is shared with the booking threads and guarded by lock
+    private final Object lock = new Object();
+    private ArrayList<ByteBuffer> pending = new ArrayList<>();
+    private long appendedCount;
+    private long durableCount;
+    private IOException failure;
+    private boolean closed;
+
+    // Only used by the writer thread once the journal is started. The segment's file is only created when the first record
+    // is written to it, so a run that changes nothing doesn't leave an empty segment behind
+    private FileChannel channel;
+    private int segment;
+    private long recordsInSegment;
+    private Thread writer;
+    private ExecutorService snapshotter;
+    // Bookings recover() didn't restore because their flight leaves on another day now, by reference. They are kept as they
+    // were read and written into every snapshot, so running on another day never throws them away. Only changed by recover()
+    private LinkedHashMap<Long, OtherDeparture> otherDepartures = new LinkedHashMap<>();
+
+    // A saved booking for another departure of its flight
+    private static class OtherDeparture 
+    {
+        final String flightNumber;
+        final LocalDate departureDate;
+        final byte[] payload;
+
+        OtherDeparture(String flightNumber, LocalDate departureDate, byte[] payload) 
+        {
+            this.flightNumber = flightNumber;
+            this.departureDate = departureDate;
+            this.payload = payload;
+        }
+    }
+
+    // Constructor for BookingJournal, nothing is read or written until recover() and start() are called
+    public BookingJournal(File directory, Collection<Flight> flights, long snapshotInterval) 
+    {
+        this.directory = directory;
+        this.flights = flights;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    // Loads the newest snapshot and replays the journal segments written after it
+    // The index is used to find flights and bookings; bookings for flights that no longer exist are skipped
+    // Returns the number of bookings restored
+    public long recover(FlightIndex index) throws IOException 
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create data directory " + directory);
+        }
+        List<Integer> snapshots = segments("snapshot-", ".dat");
+        List<Integer> journals = segments("journal-", ".log");
+        int snapshotSegment = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+
+        long restored = 0;
+        // References of bookings that were changed into another one. A snapshot can hold both, in either order
+        HashSet<Long> replaced = new HashSet<>();
+        if (!snapshots.isEmpty())
+        {
+            restored += replay(file("snapshot-", snapshotSegment, ".dat"), index, replaced);
+        }
+        for (int journal : journals)
+        {
+            File segmentFile = file("journal-", journal, ".log");
+            if (segmentFile.length() == 0)
+            {
+                // Left by a run that started but never wrote anything, it holds nothing to replay or keep
+                Files.deleteIfExists(segmentFile.toPath());
+            }
+            else if (journal >= snapshotSegment)
+            {
+                restored += replay(segmentFile, index, replaced);
+            }
+        }
+
+        // New bookings always go to a fresh segment, so a torn record at the end of the last run's segment is never appended to
+        int newest = Math.max(snapshotSegment, journals.isEmpty() ? 0 : journals.get(journals.size() - 1));
+        segment = newest + 1;
+        return restored;
+    }
+
+    // Number of saved bookings recover() left out because their flight now leaves on another day, e.g. it already left
+    // and the timetable was put on its next departure, or --date changed
+    public long getOtherDepartures() 
+    {
+        return otherDepartures.size();
+    }
+
+    // Starts the writer thread, which opens a new journal segment when there is something to write
+    public void start() throws IOException 
+    {
+        snapshotter = Executors.newSingleThreadExecutor(r -> daemon(r, "booking-snapshot"));
+        writer = daemon(this::writeLoop, "booking-journal");
+        writer.start();
+    }
+
+    // Hands the records to the writer thread and returns the ticket to wait for with awaitSaved
+    // Throws BookingNotSavedException, without queueing anything, if the journal is closed or has failed
+    public long append(List<ByteBuffer> records) 
+    {
+        synchronized (lock)
+        {
+            if (closed || failure != null)
+            {
+                throw new BookingNotSavedException("the booking journal is not accepting changes", failure);
+            }
+            pending.addAll(records);
+            appendedCount += records.size();
+            lock.notifyAll();
+            return appendedCount;
+        }
+    }
+
+    // Waits until every record up to the ticket is on disk
+    // Throws BookingNotSavedException if the writer stopped first, or if the thread is interrupted while it waits (the interrupt is kept)
+    // An interrupted wait doesn't take the records back, they may still reach the disk
+    public void awaitSaved(long ticket) 
+    {
+        synchronized (lock)
+        {
+            while (durableCount < ticket && failure == null)
+            {
+                try
+                {
+                    lock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new BookingNotSavedException("interrupted while saving the change", null);
+                }
+            }
+            if (durableCount < ticket)
+            {
+                throw new BookingNotSavedException("the change could not be saved", failure);
+            }
+        }
+    }
+
+    // Writes out whatever is still queued and closes the files
+    @Override
+    public void close() throws IOException 
+    {
+        synchronized (lock)
+        {
+            closed = true;
+            lock.notifyAll();
+        }
+        try
+        {
+            writer.join();
+            snapshotter.shutdown();
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (channel != null)
+        {
+            channel.close();
+        }
+    }
+
+    // The writer thread: takes everything that queued up, writes it in one go and forces it to disk once
+    // However it stops, everyone still waiting is woken: unless it was closed with nothing left to write, failure is set
+    private void writeLoop() 
+    {
+        IOException stopped = new IOException("Booking journal writer stopped");
+        try
+        {
+            while (true)
+            {
+                ArrayList<ByteBuffer> batch;
+                long batchEnd;
+                synchronized (lock)
+                {
+                    while (pending.isEmpty() && !closed)
+                    {
+                        lock.wait();
+                    }
+                    if (pending.isEmpty())
+                    {
+                        stopped = null;
+                        return;
+                    }
+                    batch = pending;
+                    pending = new ArrayList<>();
+                    batchEnd = appendedCount;
+                }
+
+                if (channel == null)
+                {
+                    channel = openSegment(segment);
+                }
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers)
+                {
+                    remaining += buffer.remaining();
+                }
+                while (remaining > 0)
+                {
+                    remaining -= channel.write(buffers);
+                }
+                channel.force(false);
+
+                synchronized (lock)
+                {
+                    durableCount = batchEnd;
+                    lock.notifyAll();
+                }
+
+                recordsInSegment += batch.size();
+                if (recordsInSegment >= snapshotInterval)
+                {
+                    rollSegment();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            stopped = e;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            synchronized (lock)
+            {
+                if (stopped != null && failure == null)
+                {
+                    failure = stopped;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Starts a new journal segment and asks for a snapshot of everything before it
+    // Bookings carry on into the new segment while the snapshot is being written. Its file is opened by the next write
+    private void rollSegment() throws IOException 
+    {
+        channel.close();
+        channel = null;
+        segment++;
+        recordsInSegment = 0;
+        int snapshotSegment = segment;
+        snapshotter.execute(() -> writeSnapshot(snapshotSegment));
+    }
+
+    // Writes every booking of every flight to snapshot-<n>.dat, along with the bookings for other departures recover() left out,
+    // then deletes the older files it replaces
+    // A booking can end up both in the snapshot and in segment n; replaying it the second time finds its reference already in use and skips it
+    private void writeSnapshot(int snapshotSegment) 
+    {
+        File temp = file("snapshot-", snapshotSegment, ".tmp");
+        try
+        {
+            try (FileOutputStream file = new FileOutputStream(temp);
+                 BufferedOutputStream out = new BufferedOutputStream(file, 1 << 16))
+            {
+                for (Flight flight : flights)
+                {
+                    for (Booking booking : flight.getBookings())
+                    {
+                        ByteBuffer record = encode(booking);
+                        out.write(record.array(), 0, record.limit());
+                    }
+                }
+                for (OtherDeparture other : otherDepartures.values())
+                {
+                    ByteBuffer record = frame(other.payload);
+                    out.write(record.array(), 0, record.limit());
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(temp.toPath(), file("snapshot-", snapshotSegment, ".dat").toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            for (int old : segments("journal-", ".log"))
+            {
+                if (old < snapshotSegment)
+                {
+                    Files.deleteIfExists(file("journal-", old, ".log").toPath());
+                }
+            }
+            for (int old : segments("snapshot-", ".dat"))
+            {
+                if (old < snapshotSegment)
+                {
+                    Files.deleteIfExists(file("snapshot-", old, ".dat").toPath());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // Nothing is lost, the journal segments are only deleted once a snapshot has been written
+            System.out.println("Could not write booking snapshot: " + e.getMessage());
+        }
+    }
+
+    // Reads records from a snapshot or journal file and books them again
+    // Reading stops at the first record that is cut short or fails its checksum, i.e. a write that was torn by a crash
+    private long replay(File file, FlightIndex index, Set<Long> replaced) throws IOException 
+    {
+        long restored = 0;
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+        {
+            while (true)
+            {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE)
+                {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                {
+                    break;
+                }
+                restored += apply(payload, index, replaced);
+            }
+        }
+        catch (EOFException e)
+        {
+            // End of file, possibly in the middle of a torn record
+        }
+        return restored;
+    }
+
+    // Applies one record: a booking is put back into its seat, a cancellation cancels it again, and a rebooking does both
+    // Every reference read is reserved first, even when the record is skipped, so no new booking is ever given it
+    // Returns how the number of bookings changed (1, -1 or 0 if the record was skipped)
+    private int apply(byte[] payload, FlightIndex index, Set<Long> replaced) throws IOException 
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if (type == CANCELLATION_RECORD || type == DATED_CANCELLATION_RECORD)
+        {
+            long id = in.readLong();
+            Booking.reserveId(id);
+            if (type == CANCELLATION_RECORD)
+            {
+                otherDepartures.remove(id);
+                Booking booking = index.findBooking(id);
+                return booking != null && booking.getFlight().cancelBooking(booking) ? -1 : 0;
+            }
+            String flightNumber = in.readUTF();
+            LocalDate departureDate = LocalDate.ofEpochDay(in.readLong());
+            OtherDeparture other = otherDepartures.get(id);
+            if (other != null && other.flightNumber.equals(flightNumber) && other.departureDate.equals(departureDate))
+            {
+                otherDepartures.remove(id);
+            }
+            Booking booking = index.findBooking(id);
+            if (booking == null || booking.getFlight() != index.findDeparture(flightNumber, departureDate))
+            {
+                return 0;
+            }
+            return booking.getFlight().cancelBooking(booking) ? -1 : 0;
+        }
+        if (type < BOOKING_RECORD || type > DATED_BOOKING_RECORD)
+        {
+            return 0;
+        }
+        long id = type >= REFERENCED_BOOKING_RECORD ? in.readLong() : Booking.newId();
+        Booking.reserveId(id);
+        String flightNumber = in.readUTF();
+        int seat = in.readInt();
+        Passenger passenger = new Passenger(in.readUTF(), in.readInt(), in.readUTF(), in.readBoolean(), in.readUTF());
+        // Type 1 records were sold at the base fare, which needs the flight
+        long fareCents = type == BOOKING_RECORD ? 0 : in.readLong();
+        long replacedId = type >= REBOOKING_RECORD ? in.readLong() : 0;
+        LocalDate departureDate = type == DATED_BOOKING_RECORD ? LocalDate.ofEpochDay(in.readLong()) : null;
+        int change = 0;
+        if (replacedId != 0)
+        {
+            Booking.reserveId(replacedId);
+            replaced.add(replacedId);
+            otherDepartures.remove(replacedId);
+            Booking old = index.findBooking(replacedId);
+            if (old != null && old.getFlight().cancelBooking(old))
+            {
+                change--;
+            }
+        }
+        Flight flight = departureDate == null ? index.findFlight(flightNumber) : index.findDeparture(flightNumber, departureDate);
+        if (flight == null && departureDate != null && index.findFlight(flightNumber) != null && !replaced.contains(id))
+        {
+            otherDepartures.put(id, new OtherDeparture(flightNumber, departureDate, payload));
+        }
+        if (flight == null || replaced.contains(id) || index.findBooking(id) != null)
+        {
+            return change;
+        }
+        Booking restored = flight.restoreBooking(id, passenger, seat, type == BOOKING_RECORD ? flight.getBaseFareCents() : fareCents);
+        return restored != null ? change + 1 : change;
+    }
+
+    // Encodes a booking as [length][checksum][type, reference, flight number, seat, passenger fields, fare,
+    // reference of the booking it replaces or 0, departure day]
+    public static ByteBuffer encode(Booking booking) 
+    {
+        Passenger passenger = booking.getPassenger();
+        return frame(out -> {
+            out.writeByte(DATED_BOOKING_RECORD);
+            out.writeLong(booking.getId());
+            out.writeUTF(booking.getFlight().getFlightNumber());
+            out.writeInt(booking.getSeat());
+            out.writeUTF(passenger.getName());
+            out.writeInt(passenger.getAge());
+            out.writeUTF(passenger.getGender());
+            out.writeBoolean(passenger.isDisability());
+            out.writeUTF(passenger.getPassportNumber());
+            out.writeLong(booking.getFareCents());
+            out.writeLong(booking.getReplacedId());
+            out.writeLong(booking.getFlight().getDepartureDate().toEpochDay());
+        });
+    }
+
+    // Encodes a cancellation as [length][checksum][type, reference, flight number, departure day]
+    public static ByteBuffer encodeCancellation(Booking booking) 
+    {
+        return frame(out -> {
+            out.writeByte(DATED_CANCELLATION_RECORD);
+            out.writeLong(booking.getId());
+            out.writeUTF(booking.getFlight().getFlightNumber());
+            out.writeLong(booking.getFlight().getDepartureDate().toEpochDay());
+        });
+    }
+
+    // Writes the body of a record
+    private interface RecordBody 
+    {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Puts the length and checksum in front of a record that was read back, to write it out again as it was
+    private static ByteBuffer frame(byte[] payload) 
+    {
+        return frame(out -> out.write(payload));
+    }
+
+    // Puts the length and checksum in front of a record body
+    private static ByteBuffer frame(RecordBody body) 
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(0);
+            out.writeInt(0);
+            body.write(out);
+        }
+        catch (IOException e)
+        {
+            // Writing to a byte array can't fail
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] record = bytes.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(0, record.length - HEADER_SIZE);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer;
+    }
+
+    private FileChannel openSegment(int n) throws IOException 
+    {
+        return FileChannel.open(file("journal-", n, ".log").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private File file(String prefix, int n, String suffix) 
+    {
+        return new File(directory, prefix + n + suffix);
+    }
+
+    // Segment numbers of the files in the data directory with the given prefix and suffix, in ascending order
+    private List<Integer> segments(String prefix, String suffix) 
+    {
+        ArrayList<Integer> numbers = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null)
+        {
+            return numbers;
+        }
+        for (String name : names)
+        {
+            if (name.startsWith(prefix) && name.endsWith(suffix))
+            {
+                try
+                {
+                    numbers.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private static Thread daemon(Runnable task, String name) 
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
+
+// TimetableLoader reads flights from a CSV file, one flight per line:
+//   flightNumber,source,destination,departureTime,arrivalTime,totalSeats,fare[,charterCompany]
+// Rows with a charter company become CharterFlights, the rest RegularFlights
+// Times are HH:mm, or a date and time like 2026-10-18T22:00 for a flight on a particular day (see Schedule)
+// Blank lines, lines starting with # and a header line starting with "flightNumber" are skipped
+//
+// The file is memory mapped and cut at line breaks into one chunk per core, and the chunks are parsed in parallel
+// Airport names, times and company names repeat on almost every row, so each distinct value is kept only once
+class TimetableLoader 
+{
+    // Chunks smaller than this are not worth handing to another thread
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_FIELDS = 8;
+
+    // One shared copy of every repeated name
+    private ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+
+    // Reads all flights from the file, in the order they appear in it
+    // Throws IllegalArgumentException naming the bad row if a row can't be read, or the flight number if two rows have the same one
+    public List<Flight> load(Path file) throws IOException 
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Timetable is too large: " + file);
+            }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // Cut the file into chunks, moving each cut forward to just after a line break
+            int chunks = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_SIZE));
+            int[] bounds = new int[chunks + 1];
+            bounds[chunks] = (int) size;
+            for (int i = 1; i < chunks; i++)
+            {
+                int cut = Math.max((int) (size * i / chunks), bounds[i - 1]);
+                while (cut < size && data.get(cut - 1) != '\n')
+                {
+                    cut++;
+                }
+                bounds[i] = cut;
+            }
+
+            // Each chunk only reads the buffer with absolute gets, so the chunks can share it
+            List<List<Flight>> parsed = IntStream.range(0, chunks)
+                                                 .parallel()
+                                                 .mapToObj(i -> parseChunk(data, bounds[i], bounds[i + 1]))
+                                                 .collect(Collectors.toList());
+            ArrayList<Flight> flights = new ArrayList<>();
+            HashSet<String> numbers = new HashSet<>();
+            for (List<Flight> chunk : parsed)
+            {
+                for (Flight flight : chunk)
+                {
+                    // The index finds flights by number, so a second row with the same number would quietly hide the first
+                    if (!numbers.add(flight.getFlightNumber()))
+                    {
+                        throw new IllegalArgumentException("flight " + flight.getFlightNumber() + " is in the timetable more than once");
+                    }
+                    flights.add(flight);
+                }
+            }
+            return flights;
+        }
+    }
+
+    // Parses the lines in [start, end) of the buffer
+    private List<Flight> parseChunk(ByteBuffer data, int start, int end) 
+    {
+        ArrayList<Flight> flights = new ArrayList<>();
+        int[] fieldStart = new int[MAX_FIELDS];
+        int[] fieldEnd = new int[MAX_FIELDS];
+        int lineStart = start;
+        while (lineStart < end)
+        {
+            int lineEnd = lineStart;
+            while (lineEnd < end && data.get(lineEnd) != '\n')
+            {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && data.get(lineEnd - 1) == '\r')
+            {
+                lineEnd--;
+            }
+
+            if (lineEnd > lineStart && data.get(lineStart) != '#')
+            {
+                // Find where each comma separated field starts and ends
+                int fields = 0;
+                int from = lineStart;
+                for (int i = lineStart; i <= lineEnd && fields < MAX_FIELDS; i++)
+                {
+                    if (i == lineEnd || data.get(i) == ',')
+                    {
+                        fieldStart[fields] = from;
+                        fieldEnd[fields] = i;
+                        fields++;
+                        from = i + 1;
+                    }
+                }
+                Flight flight = parseRow(data, fields, fieldStart, fieldEnd, lineStart, lineEnd);
+                if (flight != null)
+                {
+                    flights.add(flight);
+                }
+            }
+            lineStart = next;
+        }
+        return flights;
+    }
+
+    // Builds the flight for one row, or returns null for the header row
+    private Flight parseRow(ByteBuffer data, int fields, int[] fieldStart, int[] fieldEnd, int lineStart, int lineEnd) 
+    {
+        String flightNumber = text(data, fieldStart[0], fieldEnd[0]);
+        if (flightNumber.equalsIgnoreCase("flightNumber"))
+        {
+            return null;
+        }
+        try
+        {
+            if (fields < 7)
+            {
+                throw new IllegalArgumentException("missing fields");
+            }
+            String source = intern(text(data, fieldStart[1], fieldEnd[1]));
+            String destination = intern(text(data, fieldStart[2], fieldEnd[2]));
+            String departureTime = intern(text(data, fieldStart[3], fieldEnd[3]));
+            String arrivalTime = intern(text(data, fieldStart[4], fieldEnd[4]));
+            int totalSeats = Integer.parseInt(text(data, fieldStart[5], fieldEnd[5]));
+            double fare = Double.parseDouble(text(data, fieldStart[6], fieldEnd[6]));
+            String charterCompany = fields > 7 ? text(data, fieldStart[7], fieldEnd[7]) : "";
+
+            if (flightNumber.isEmpty() || source.isEmpty() || destination.isEmpty() || totalSeats <= 0 || fare < 0)
+            {
+                throw new IllegalArgumentException("invalid value");
+            }
+
+            if (charterCompany.isEmpty())
+            {
+                return new RegularFlight(flightNumber, source, destination, departureTime, arrivalTime, totalSeats, fare);
+            }
+            return new CharterFlight(flightNumber, source, destination, departureTime, arrivalTime, totalSeats, fare, intern(charterCompany));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Invalid timetable row (" + e.getMessage() + "): " + text(data, lineStart, lineEnd));
+        }
+    }
+
+    // The field's text with surrounding spaces removed
+    private static String text(ByteBuffer data, int from, int to) 
+    {
+        byte[] bytes = new byte[to - from];
+        data.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8).trim();
+    }
+
+    // Returns the shared copy of the name, so the thousands of rows leaving "Delhi" all point to one string
+    private String intern(String name) 
+    {
+        String existing = names.putIfAbsent(name, name);
+        return existing == null ? name : existing;
+    }
+}
+
+// BookingServer lets other programs view flights, book tickets and look up passengers over a socket, without the menu
+// The protocol is plain text, one request per line, and every response ends with a line containing only END:
+//   FLIGHTS                                                   one line per flight:
+//                                                             number source destination departure arrival availableSeats fare [company]
+//   BOOK flight name age gender disability(Yes/No) passport [seat|class|BLOCK]
+//                                                             OK <seat> <reference>, or FULL, or ERROR <reason>
+//                                                             a class (FIRST, BUSINESS, ECONOMY) books any seat in it, BLOCK any seat in a charter block
+//   CANCEL reference                                          CANCELLED, or NOT_FOUND
+//   PASSENGERS                                                one line per booking: flight seat name age gender disability passport reference
+//   WAITLIST flight name age gender disability passport       WAITLISTED <passengers waiting>
+//   TICKET passport                                           the same booking lines for that passport, or NOT_FOUND
+//   METRICS                                                   the metrics report, one value per line
+//   SEARCH flight|* name...                                   booking lines for passengers whose name matches, on one flight or all
+//   QUIT                                                      closes the connection
+// Words of a request are separated by spaces, and a name with spaces in it is put in double quotes: BOOK AI101 "Mary Ann Smith" ...
+// Fields of a response are separated by tabs. Each connection gets its own thread, a virtual thread when the Java runtime has them
+class BookingServer implements Closeable 
+{
+    private ServerSocket serverSocket;
+    private ExecutorService connections;
+    private Inventory inventory;
+    private FlightIndex index;
+    private volatile Metrics metrics;
+    private volatile NameIndex names;
+
+    // Constructor for BookingServer, starts listening on the given port straight away
+    public BookingServer(int port, Inventory inventory, FlightIndex index) throws IOException 
+    {
+        this.serverSocket = new ServerSocket(port, 4096);
+        this.connections = newConnectionExecutor();
+        this.inventory = inventory;
+        this.index = index;
+    }
+
+    public int getPort() 
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    // Sets the metrics that METRICS reports
+    public void setMetrics(Metrics metrics) 
+    {
+        this.metrics = metrics;
+    }
+
+    // Sets the name index that SEARCH uses
+    public void setNameIndex(NameIndex names) 
+    {
+        this.names = names;
+    }
+
+    // Accepts connections until the server is closed
+    public void serve() 
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> handle(socket));
+            }
+            catch (IOException e)
+            {
+                if (!serverSocket.isClosed())
+                {
+                    System.out.println("Could not accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException 
+    {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    // Reads requests from one client and answers them until it says QUIT or hangs up
+    private void handle(Socket socket) 
+    {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), 1 << 14))
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                String[] words = split(line);
+                if (words[0].equalsIgnoreCase("QUIT"))
+                {
+                    return;
+                }
+                execute(words, out);
+                out.write("END\n");
+                // The whole response goes out in one write
+                out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            // The client went away, nothing to clean up
+        }
+    }
+
+    // The words of a request line. A word in double quotes can have spaces in it, and comes back without the quotes
+    // A blank line is one empty word, so it gets the unknown request error like any other
+    static String[] split(String line) 
+    {
+        ArrayList<String> words = new ArrayList<>();
+        int i = 0;
+        while (true)
+        {
+            while (i < line.length() && Character.isWhitespace(line.charAt(i)))
+            {
+                i++;
+            }
+            if (i == line.length())
+            {
+                break;
+            }
+            int end;
+            if (line.charAt(i) == '"')
+            {
+                // An unclosed quote runs to the end of the line
+                end = line.indexOf('"', i + 1);
+                end = end < 0 ? line.length() : end;
+                words.add(line.substring(i + 1, end));
+                i = Math.min(end + 1, line.length());
+                continue;
+            }
+            end = i;
+            while (end < line.length() && !Character.isWhitespace(line.charAt(end)))
+            {
+                end++;
+            }
+            words.add(line.substring(i, end));
+            i = end;
+        }
+        return words.isEmpty() ? new String[] { "" } : words.toArray(new String[0]);
+    }
+
+    // The request line split() turns back into the same words, with quotes round any word that has a space in it
+    static String join(String[] words) 
+    {
+        StringBuilder line = new StringBuilder(64);
+        for (String word : words)
+        {
+            if (line.length() > 0)
+            {
+                line.append(' ');
+            }
+            boolean quoted = word.isEmpty() || word.chars().anyMatch(Character::isWhitespace);
+            if (quoted)
+            {
+                line.append('"').append(word).append('"');
+            }
+            else
+            {
+                line.append(word);
+            }
+        }
+        return line.toString();
+    }
+
+    // Runs one request and writes its answer (without the END line)
+    void execute(String[] words, Appendable out) throws IOException 
+    {
+        switch (words[0].toUpperCase(Locale.ROOT))
+        {
+            case "FLIGHTS":
+                for (FlightSnapshot flight : inventory.snapshot().getFlights())
+                {
+                    writeFlight(flight, out);
+                }
+                break;
+            case "BOOK":
+                book(words, out);
+                break;
+            case "WAITLIST":
+                waitlist(words, out);
+                break;
+            case "CANCEL":
+                cancel(words, out);
+                break;
+            case "PASSENGERS":
+                for (FlightSnapshot flight : inventory.snapshot().getFlights())
+                {
+                    for (Booking booking : flight.getBookings())
+                    {
+                        writeBooking(booking, out);
+                    }
+                }
+                break;
+            case "TICKET":
+                if (words.length < 2)
+                {
+                    out.append("ERROR usage: TICKET passport\n");
+                    break;
+                }
+                List<Booking> bookings = index.findBookings(words[1]);
+                if (bookings.isEmpty())
+                {
+                    out.append("NOT_FOUND\n");
+                }
+                for (Booking booking : bookings)
+                {
+                    writeBooking(booking, out);
+                }
+                break;
+            case "SEARCH":
+                search(words, out);
+                break;
+            case "METRICS":
+                Metrics current = metrics;
+                if (current == null)
+                {
+                    out.append("ERROR metrics are not enabled\n");
+                    break;
+                }
+                StringBuilder report = new StringBuilder(1024);
+                current.appendReport(report);
+                out.append(report);
+                break;
+            default:
+                out.append("ERROR unknown request ").append(words[0]).append('\n');
+        }
+    }
+
+    // BOOK flight name age gender disability passport [seat|class|BLOCK]
+    private void book(String[] words, Appendable out) throws IOException 
+    {
+        if (words.length < 7)
+        {
+            out.append("ERROR usage: BOOK flight name age gender disability passport [seat|class|BLOCK]\n");
+            return;
+        }
+        Flight flight = index.findFlight(words[1]);
+        if (flight == null)
+        {
+            out.append("ERROR invalid flight number\n");
+            return;
+        }
+        Passenger passenger = parsePassenger(words, out);
+        if (passenger == null)
+        {
+            return;
+        }
+        Booking booking;
+        try
+        {
+            booking = flight.bookChoice(passenger, words.length > 7 ? words[7] : null);
+        }
+        catch (BookingConflictException | BookingNotSavedException e)
+        {
+            out.append("ERROR ").append(e.getMessage()).append('\n');
+            return;
+        }
+        if (booking != null)
+        {
+            out.append("OK ").append(booking.getSeatNumber()).append(' ').append(String.valueOf(booking.getId())).append('\n');
+        }
+        else if (words.length > 7 && flight.getAvailableSeats() > 0)
+        {
+            out.append("ERROR seat not available\n");
+        }
+        else
+        {
+            out.append("FULL\n");
+        }
+    }
+
+    // WAITLIST flight name age gender disability passport
+    private void waitlist(String[] words, Appendable out) throws IOException 
+    {
+        if (words.length < 7)
+        {
+            out.append("ERROR usage: WAITLIST flight name age gender disability passport\n");
+            return;
+        }
+        Flight flight = index.findFlight(words[1]);
+        Passenger passenger = flight == null ? null : parsePassenger(words, out);
+        if (flight == null)
+        {
+            out.append("ERROR invalid flight number\n");
+        }
+        else if (passenger != null)
+        {
+            try
+            {
+                int waiting = flight.joinWaitlist(passenger);
+                out.append("WAITLISTED ").append(String.valueOf(waiting)).append('\n');
+            }
+            catch (BookingConflictException e)
+            {
+                out.append("ERROR ").append(e.getMessage()).append('\n');
+            }
+        }
+    }
+
+    // SEARCH flight|* name...
+    private void search(String[] words, Appendable out) throws IOException 
+    {
+        NameIndex current = names;
+        if (words.length < 3)
+        {
+            out.append("ERROR usage: SEARCH flight|* name...\n");
+            return;
+        }
+        if (current == null)
+        {
+            out.append("ERROR name search is not enabled\n");
+            return;
+        }
+        Flight flight = null;
+        if (!words[1].equals("*"))
+        {
+            flight = index.findFlight(words[1]);
+            if (flight == null)
+            {
+                out.append("ERROR invalid flight number\n");
+                return;
+            }
+        }
+        List<Booking> bookings = current.search(String.join(" ", Arrays.copyOfRange(words, 2, words.length)), flight, 50);
+        if (bookings.isEmpty())
+        {
+            out.append("NOT_FOUND\n");
+        }
+        for (Booking booking : bookings)
+        {
+            writeBooking(booking, out);
+        }
+    }
+
+    // CANCEL reference
+    private void cancel(String[] words, Appendable out) throws IOException 
+    {
+        if (words.length < 2)
+        {
+            out.append("ERROR usage: CANCEL reference\n");
+            return;
+        }
+        Booking booking;
+        try
+        {
+            booking = index.findBooking(Long.parseLong(words[1]));
+        }
+        catch (NumberFormatException e)
+        {
+            out.append("ERROR invalid booking reference\n");
+            return;
+        }
+        try
+        {
+            out.append(booking != null && booking.getFlight().cancelBooking(booking) ? "CANCELLED\n" : "NOT_FOUND\n");
+        }
+        catch (BookingNotSavedException e)
+        {
+            out.append("ERROR ").append(e.getMessage()).append('\n');
+        }
+    }
+
+    // The passenger in words[2..6] of a BOOK or WAITLIST request, or null (with an error written) if any of the details is invalid
+    // words[2] is the whole name, however many words it has, as long as the client quoted it
+    private static Passenger parsePassenger(String[] words, Appendable out) throws IOException 
+    {
+        try
+        {
+            Passenger passenger = new Passenger(words[2], Integer.parseInt(words[3]), words[4], words[5].equalsIgnoreCase("Yes"), words[6]);
+            String problem = PassengerValidator.check(passenger);
+            if (problem != null)
+            {
+                out.append("ERROR ").append(problem).append('\n');
+                return null;
+            }
+            return passenger;
+        }
+        catch (NumberFormatException e)
+        {
+            out.append("ERROR invalid age\n");
+            return null;
+        }
+    }
+
+    private static void writeFlight(FlightSnapshot snapshot, Appendable out) throws IOException 
+    {
+        Flight flight = snapshot.getFlight();
+        out.append(flight.getFlightNumber()).append('\t').append(flight.getSource()).append('\t')
+           .append(flight.getDestination()).append('\t').append(flight.getDepartureTime()).append('\t')
+           .append(flight.getArrivalTime()).append('\t').append(String.valueOf(snapshot.getAvailableSeats())).append('\t')
+           .append(FareQuotes.format(snapshot.getFareCents()));
+        if (flight instanceof CharterFlight)
+        {
+            out.append('\t').append(((CharterFlight) flight).getCharterCompany());
+        }
+        out.append('\n');
+    }
+
+    private static void writeBooking(Booking booking, Appendable out) throws IOException 
+    {
+        Passenger passenger = booking.getPassenger();
+        out.append(booking.getFlight().getFlightNumber()).append('\t').append(booking.getSeatNumber()).append('\t')
+           .append(passenger.getName()).append('\t').append(String.valueOf(passenger.getAge())).append('\t')
+           .append(passenger.getGender()).append('\t').append(passenger.isDisability() ? "Yes" : "No").append('\t')
+           .append(passenger.getPassportNumber()).append('\t').append(String.valueOf(booking.getId())).append('\n');
+    }
+
+    // One virtual thread per task on runtimes that have them (Java 21+), otherwise a growing pool of normal threads
+    static ExecutorService newConnectionExecutor() 
+    {
+        try
+        {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
+
+// ShardRouter spreads the flights over several BookingServer processes and looks like one BookingServer to its clients
+// Each shard is started with --shard i/N and only loads the flights whose number belongs to it (see shardOf),
+// with its own data directory, so every flight and its bookings live in exactly one process
+// BOOK and WAITLIST go to the shard that owns the flight and CANCEL to the shard that handed out the reference
+// FLIGHTS, PASSENGERS, TICKET, SEARCH (on all flights) and METRICS go to every shard at once and the answers are joined, shard by shard
+class ShardRouter extends BookingServer 
+{
+    // Connections to one shard that are not in use at the moment
+    private List<ConcurrentLinkedQueue<ShardConnection>> idle = new ArrayList<>();
+    private List<InetSocketAddress> shards;
+
+    // Constructor for ShardRouter, shards are in shard order, i.e shard i is the one started with --shard i/N
+    public ShardRouter(int port, List<InetSocketAddress> shards) throws IOException 
+    {
+        super(port, new Inventory(), new FlightIndex());
+        this.shards = shards;
+        for (int i = 0; i < shards.size(); i++)
+        {
+            idle.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    // The shard that owns a flight. String.hashCode is the same in every JVM, so the router and the shards always agree
+    public static int shardOf(String flightNumber, int shards) 
+    {
+        return Math.floorMod(flightNumber.hashCode(), shards);
+    }
+
+    @Override
+    void execute(String[] words, Appendable out) throws IOException 
+    {
+        // Quoted again, so a name with spaces in it reaches the shard as one word
+        String line = join(words);
+        switch (words[0].toUpperCase(Locale.ROOT))
+        {
+            case "BOOK":
+            case "WAITLIST":
+                // A request without a flight number is sent anywhere, to get the usage message back
+                forward(words.length > 1 ? shardOf(words[1], shards.size()) : 0, line, out);
+                break;
+            case "CANCEL":
+                forward(words.length > 1 ? shardOfReference(words[1]) : 0, line, out);
+                break;
+            case "SEARCH":
+                // A search on one flight only needs its shard, a search on all of them needs every shard
+                if (words.length > 1 && !words[1].equals("*"))
+                {
+                    forward(shardOf(words[1], shards.size()), line, out);
+                }
+                else
+                {
+                    gatherFound(line, out);
+                }
+                break;
+            case "TICKET":
+                gatherFound(line, out);
+                break;
+            case "METRICS":
+                List<List<String>> reports = scatter(line);
+                for (int shard = 0; shard < reports.size(); shard++)
+                {
+                    out.append("shard ").append(String.valueOf(shard)).append('\n');
+                    appendLines(reports.get(shard), out);
+                }
+                break;
+            case "FLIGHTS":
+            case "PASSENGERS":
+                for (List<String> response : scatter(line))
+                {
+                    appendLines(response, out);
+                }
+                break;
+            default:
+                out.append("ERROR unknown request ").append(words[0]).append('\n');
+        }
+    }
+
+    // Sends the request to every shard and joins what they found
+    // Every shard that has nothing for it says NOT_FOUND, it is only passed on if they all do
+    private void gatherFound(String request, Appendable out) throws IOException 
+    {
+        boolean found = false;
+        for (List<String> response : scatter(request))
+        {
+            for (String line : response)
+            {
+                if (!line.equals("NOT_FOUND"))
+                {
+                    out.append(line).append('\n');
+                    found = true;
+                }
+            }
+        }
+        if (!found)
+        {
+            out.append("NOT_FOUND\n");
+        }
+    }
+
+    // Booking references are handed out as n * shards + shard, see Booking.useShard
+    private int shardOfReference(String reference) 
+    {
+        try
+        {
+            return (int) Math.floorMod(Long.parseLong(reference), (long) shards.size());
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    // Sends the request to one shard and copies its answer
+    private void forward(int shard, String request, Appendable out) throws IOException 
+    {
+        ShardConnection connection = null;
+        try
+        {
+            connection = connect(shard);
+            connection.send(request);
+            appendLines(connection.receive(), out);
+            idle.get(shard).offer(connection);
+        }
+        catch (IOException e)
+        {
+            closeQuietly(connection);
+            out.append("ERROR shard ").append(String.valueOf(shard)).append(" unavailable\n");
+        }
+    }
+
+    // Sends the request to every shard before reading any answer, so the shards work on it at the same time
+    // A shard that can't be reached answers with an ERROR line instead
+    private List<List<String>> scatter(String request) 
+    {
+        ShardConnection[] connections = new ShardConnection[shards.size()];
+        for (int shard = 0; shard < connections.length; shard++)
+        {
+            try
+            {
+                connections[shard] = connect(shard);
+                connections[shard].send(request);
+            }
+            catch (IOException e)
+            {
+                closeQuietly(connections[shard]);
+                connections[shard] = null;
+            }
+        }
+        List<List<String>> responses = new ArrayList<>(connections.length);
+        for (int shard = 0; shard < connections.length; shard++)
+        {
+            List<String> response = null;
+            if (connections[shard] != null)
+            {
+                try
+                {
+                    response = connections[shard].receive();
+                    idle.get(shard).offer(connections[shard]);
+                }
+                catch (IOException e)
+                {
+                    closeQuietly(connections[shard]);
+                }
+            }
+            responses.add(response != null ? response : Collections.singletonList("ERROR shard " + shard + " unavailable"));
+        }
+        return responses;
+    }
+
+    // Reuses an idle connection to the shard, or opens a new one
+    private ShardConnection connect(int shard) throws IOException 
+    {
+        ShardConnection connection = idle.get(shard).poll();
+        return connection != null ? connection : new ShardConnection(shards.get(shard));
+    }
+
+    private static void appendLines(List<String> lines, Appendable out) throws IOException 
+    {
+        for (String line : lines)
+        {
+            out.append(line).append('\n');
+        }
+    }
+
+    private static void closeQuietly(ShardConnection connection) 
+    {
+        if (connection != null)
+        {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException 
+    {
+        super.close();
+        for (ConcurrentLinkedQueue<ShardConnection> connections : idle)
+        {
+            ShardConnection connection;
+            while ((connection = connections.poll()) != null)
+            {
+                connection.close();
+            }
+        }
+    }
+
+    // One open connection to a shard, used by one request at a time
+    private static class ShardConnection 
+    {
+        private Socket socket;
+        private BufferedReader in;
+        private BufferedWriter out;
+
+        ShardConnection(InetSocketAddress address) throws IOException 
+        {
+            socket = new Socket(address.getHostString(), address.getPort());
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String request) throws IOException 
+        {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+        }
+
+        // Reads the answer lines up to END
+        List<String> receive() throws IOException 
+        {
+            ArrayList<String> lines = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.equals("END"))
+                {
+                    return lines;
+                }
+                lines.add(line);
+            }
+            throw new EOFException("shard closed the connection");
+        }
+
+        void close() 
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing more to do with it
+            }
+        }
+    }
+}
+
+// LoadGenerator drives a BookingServer with many clients at once and reports throughput and latency
+// Every client first fetches the flights, then alternates between booking a seat and looking up its own ticket
+class LoadGenerator 
+{
+    // Runs the load and prints the results
+    public static void run(String host, int port, int clients, int requestsPerClient) throws Exception 
+    {
+        long[][] latencies = new long[clients][];
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = BookingServer.newConnectionExecutor();
+        ArrayList<Future<?>> running = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++)
+        {
+            int client = c;
+            running.add(executor.submit(() -> {
+                latencies[client] = runClient(host, port, client, requestsPerClient, failures);
+                return null;
+            }));
+        }
+        for (Future<?> future : running)
+        {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.println("Requests: " + all.length + "  Failed: " + failures.get());
+        System.out.println("Throughput: " + (long) (all.length / (elapsed / 1e9)) + " requests/s");
+        if (all.length > 0)
+        {
+            System.out.println("Latency p50: " + all[all.length / 2] / 1000 + " us  p99: " + all[(int) (all.length * 0.99)] / 1000
+                               + " us  max: " + all[all.length - 1] / 1000 + " us");
+        }
+    }
+
+    // One client's session. Returns the latency of each request in nanoseconds
+    private static long[] runClient(String host, int port, int client, int requests, AtomicInteger failures) throws IOException 
+    {
+        long[] latencies = new long[requests];
+        Random random = new Random(client);
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))
+        {
+            ArrayList<String> flightNumbers = new ArrayList<>();
+            for (String line : request("FLIGHTS", in, out))
+            {
+                flightNumbers.add(line.substring(0, line.indexOf('\t')));
+            }
+            for (int i = 0; i < requests; i++)
+            {
+                // Each booking is for a new passport, the servers refuse to book one twice at the same time
+                String passport = "LG" + client + "N" + i / 2;
+                String request = i % 2 == 0
+                    ? "BOOK " + flightNumbers.get(random.nextInt(flightNumbers.size())) + " \"Load Client\" 30 Other No " + passport
+                    : "TICKET " + passport;
+                long sent = System.nanoTime();
+                List<String> response = request(request, in, out);
+                latencies[i] = System.nanoTime() - sent;
+                if (!response.isEmpty() && response.get(0).startsWith("ERROR"))
+                {
+                    failures.incrementAndGet();
+                }
+            }
+            out.write("QUIT\n");
+            out.flush();
+        }
+        return latencies;
+    }
+
+    // Sends one request and reads the response lines up to END
+    private static List<String> request(String request, BufferedReader in, Writer out) throws IOException 
+    {
+        out.write(request);
+        out.write('\n');
+        out.flush();
+        ArrayList<String> lines = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("END"))
+        {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
+
+// BookingAnalytics keeps running totals for the booking report: bookings, revenue and passenger demographics per route
+// Every booking and cancellation updates the totals of its route in constant time, so the report never has to go through
+// the passenger lists. Load factor per flight doesn't need totals of its own, each flight already counts its bookings
+class BookingAnalytics implements BookingListener 
+{
+    // Age groups of the demographics, a passenger is in the last group whose lower bound is <= their age
+    private static final int[] AGE_GROUP_STARTS = { 0, 18, 35, 60 };
+    private static final String[] AGE_GROUP_NAMES = { "0-17", "18-34", "35-59", "60+" };
+
+    // Running totals for one source-destination pair
+    static class RouteTotals 
+    {
+        private String source;
+        private String destination;
+        private LongAdder flights = new LongAdder();
+        private LongAdder bookings = new LongAdder();
+        private LongAdder revenueCents = new LongAdder();
+        private LongAdder disabled = new LongAdder();
+        private LongAdder[] ageGroups = new LongAdder[AGE_GROUP_STARTS.length];
+
+        RouteTotals(String source, String destination) 
+        {
+            this.source = source;
+            this.destination = destination;
+            for (int i = 0; i < ageGroups.length; i++)
+            {
+                ageGroups[i] = new LongAdder();
+            }
+        }
+
+        // Adds the booking to the totals, or takes it off again when sign is -1
+        void add(Booking booking, int sign) 
+        {
+            Passenger passenger = booking.getPassenger();
+            bookings.add(sign);
+            revenueCents.add(sign * booking.getFareCents());
+            if (passenger.isDisability())
+            {
+                disabled.add(sign);
+            }
+            ageGroups[ageGroup(passenger.getAge())].add(sign);
+        }
+
+        public long getBookings() 
+        {
+            return bookings.sum();
+        }
+
+        public long getRevenueCents() 
+        {
+            return revenueCents.sum();
+        }
+    }
+
+    // route key -> totals, in the order the routes were first seen
+    private ConcurrentHashMap<String, RouteTotals> routes = new ConcurrentHashMap<>();
+    private CopyOnWriteArrayList<RouteTotals> routeOrder = new CopyOnWriteArrayList<>();
+    // Each flight's route, so a booking finds its totals without building the route key
+    private ConcurrentHashMap<Flight, RouteTotals> routeOfFlight = new ConcurrentHashMap<>();
+    private CopyOnWriteArrayList<Flight> flights = new CopyOnWriteArrayList<>();
+
+    // Adds a flight to its route, so its seats count in the route's load factor
+    // Bookings on flights that were never added still count, just without their seats
+    public void addFlight(Flight flight) 
+    {
+        RouteTotals route = routeOf(flight);
+        route.flights.increment();
+        flights.add(flight);
+    }
+
+    @Override
+    public void onBooking(Booking booking) 
+    {
+        routeOf(booking.getFlight()).add(booking, 1);
+    }
+
+    @Override
+    public void onCancellation(Booking booking) 
+    {
+        routeOf(booking.getFlight()).add(booking, -1);
+    }
+
+    // The totals of the flight's route
+    public RouteTotals routeOf(Flight flight) 
+    {
+        RouteTotals route = routeOfFlight.get(flight);
+        if (route != null)
+        {
+            return route;
+        }
+        route = routes.computeIfAbsent(flight.getSource() + "->" + flight.getDestination(), key -> {
+            RouteTotals created = new RouteTotals(flight.getSource(), flight.getDestination());
+            routeOrder.add(created);
+            return created;
+        });
+        routeOfFlight.put(flight, route);
+        return route;
+    }
+
+    private static int ageGroup(int age) 
+    {
+        int group = AGE_GROUP_STARTS.length - 1;
+        while (group > 0 && age < AGE_GROUP_STARTS[group])
+        {
+            group--;
+        }
+        return group;
+    }
+
+    // Writes the report: every route's totals, then the load factor of every flight
+    public void appendReport(StringBuilder out) 
+    {
+        long totalBookings = 0;
+        long totalRevenue = 0;
+        // Seats are added up now rather than when the flights were added, since a flight's seats change when it is put on an aircraft
+        HashMap<RouteTotals, Long> seatsByRoute = new HashMap<>();
+        for (Flight flight : flights)
+        {
+            seatsByRoute.merge(routeOf(flight), (long) flight.getTotalSeats(), Long::sum);
+        }
+        out.append("\nBookings by route:\n");
+        for (RouteTotals route : routeOrder)
+        {
+            long bookings = route.getBookings();
+            long seats = seatsByRoute.getOrDefault(route, 0L);
+            long revenue = route.getRevenueCents();
+            totalBookings += bookings;
+            totalRevenue += revenue;
+            out.append(route.source).append(" -> ").append(route.destination)
+               .append("  Flights: ").append(route.flights.sum())
+               .append("  Booked: ").append(bookings).append('/').append(seats)
+               .append("  Load Factor: ").append(seats == 0 ? 0 : bookings * 100 / seats).append('%')
+               .append("  Revenue: ");
+            FareQuotes.appendCents(out, revenue);
+            out.append("  Average Fare: ");
+            FareQuotes.appendCents(out, bookings == 0 ? 0 : revenue / bookings);
+            out.append("\n    Ages:");
+            for (int i = 0; i < AGE_GROUP_NAMES.length; i++)
+            {
+                out.append(' ').append(AGE_GROUP_NAMES[i]).append(": ").append(route.ageGroups[i].sum());
+            }
+            out.append("  Disabled: ").append(route.disabled.sum()).append('\n');
+        }
+        out.append("Total Booked: ").append(totalBookings).append("  Total Revenue: ");
+        FareQuotes.appendCents(out, totalRevenue);
+        out.append('\n');
+
+        out.append("\nLoad factor by flight:\n");
+        for (Flight flight : flights)
+        {
+            int booked = flight.getBookedCount();
+            out.append(flight.getFlightNumber()).append("  ").append(flight.getSource()).append(" -> ").append(flight.getDestination())
+               .append("  Booked: ").append(booked).append('/').append(flight.getTotalSeats())
+               .append("  Load Factor: ").append(flight.getTotalSeats() == 0 ? 0 : booked * 100 / flight.getTotalSeats()).append("%\n");
+        }
+    }
+}
+
+// LatencyHistogram counts how long something took, in nanoseconds, without locks
+// Like an HDR histogram, values are kept in buckets that grow with the value: every power of two is split into 16 buckets,
+// so any recorded value is known to within about 6% however small or large it is, and the whole thing is just under 1000 counters
+class LatencyHistogram 
+{
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private LongAdder total = new LongAdder();
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) 
+    {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        max.accumulate(value);
+    }
+
+    public long getCount() 
+    {
+        return total.sum();
+    }
+
+    public long getMax() 
+    {
+        return max.get();
+    }
+
+    // The value that the given percentage (e.g 99.9) of recorded values are at or below, rounded up to the end of its bucket
+    public long getValueAtPercentile(double percentile) 
+    {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long wanted = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= wanted)
+            {
+                return Math.min(lowestValue(i + 1) - 1, getMax());
+            }
+        }
+        return 0;
+    }
+
+    // Values below 16 get a bucket each, after that the top 5 bits of the value pick the bucket
+    private static int bucket(long value) 
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // The smallest value that goes into the given bucket
+    private static long lowestValue(int bucket) 
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        if (bucket >= BUCKETS)
+        {
+            return Long.MAX_VALUE;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
+
+// Metrics counts what the booking and lookup paths do and how long they take, cheaply enough to leave on at peak booking rate
+// Counters are LongAdders, so busy threads don't fight over one cache line. Reading the clock costs about as much as a lookup,
+// so only one call in SAMPLE_RATE is timed; the counts are still exact
+// Occupancy per route isn't tracked as bookings happen, it is worked out from the flights whenever a report is written
+class Metrics implements BookingListener, Closeable 
+{
+    static final int SAMPLE_RATE = 64;
+    private LongAdder bookings = new LongAdder();
+    private LongAdder bookingsRejected = new LongAdder();
+    private LongAdder cancellations = new LongAdder();
+    private LongAdder flightLookups = new LongAdder();
+    private LongAdder flightLookupMisses = new LongAdder();
+    private LongAdder passengerLookups = new LongAdder();
+    private LongAdder passengerLookupMisses = new LongAdder();
+    private LatencyHistogram bookingLatency = new LatencyHistogram();
+    private LatencyHistogram flightLookupLatency = new LatencyHistogram();
+    private LatencyHistogram passengerLookupLatency = new LatencyHistogram();
+    private Collection<Flight> flights;
+    private ScheduledExecutorService dumper;
+
+    // Constructor for Metrics, flights are the ones whose occupancy is reported
+    public Metrics(Collection<Flight> flights) 
+    {
+        this.flights = flights;
+    }
+
+    // Call before the timed operation and pass the result to one of the record methods after it
+    // Returns 0 for calls that aren't sampled
+    public long startTimer() 
+    {
+        return (ThreadLocalRandom.current().nextInt() & (SAMPLE_RATE - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    // Successful bookings are counted by onBooking, so bulk bookings and waitlist promotions are included
+    public void recordBooking(long start, boolean booked) 
+    {
+        if (!booked)
+        {
+            bookingsRejected.increment();
+        }
+        record(bookingLatency, start);
+    }
+
+    public void recordFlightLookup(long start, boolean found) 
+    {
+        flightLookups.increment();
+        if (!found)
+        {
+            flightLookupMisses.increment();
+        }
+        record(flightLookupLatency, start);
+    }
+
+    public void recordPassengerLookup(long start, boolean found) 
+    {
+        passengerLookups.increment();
+        if (!found)
+        {
+            passengerLookupMisses.increment();
+        }
+        record(passengerLookupLatency, start);
+    }
+
+    private static void record(LatencyHistogram histogram, long start) 
+    {
+        if (start != 0)
+        {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void onBooking(Booking booking) 
+    {
+        bookings.increment();
+    }
+
+    @Override
+    public void onBatch(List<Booking> batch) 
+    {
+        bookings.add(batch.size());
+    }
+
+    @Override
+    public void onCancellation(Booking booking) 
+    {
+        cancellations.increment();
+    }
+
+    // Writes every counter, the latency percentiles and the occupancy of each route, one value per line
+    public void appendReport(StringBuilder out) 
+    {
+        out.append("time ").append(Instant.now()).append('\n');
+        appendCounter(out, "bookings", bookings);
+        appendCounter(out, "bookings.rejected", bookingsRejected);
+        appendCounter(out, "cancellations", cancellations);
+        appendCounter(out, "lookups.flight", flightLookups);
+        appendCounter(out, "lookups.flight.misses", flightLookupMisses);
+        appendCounter(out, "lookups.passenger", passengerLookups);
+        appendCounter(out, "lookups.passenger.misses", passengerLookupMisses);
+        appendLatency(out, "latency.booking", bookingLatency);
+        appendLatency(out, "latency.lookup.flight", flightLookupLatency);
+        appendLatency(out, "latency.lookup.passenger", passengerLookupLatency);
+
+        // Booked and total seats for every source-destination pair, in the order the routes are first seen
+        LinkedHashMap<String, long[]> routes = new LinkedHashMap<>();
+        for (Flight flight : flights)
+        {
+            long[] seats = routes.computeIfAbsent(flight.getSource() + "-" + flight.getDestination(), k -> new long[2]);
+            seats[0] += flight.getTotalSeats() - flight.getAvailableSeats();
+            seats[1] += flight.getTotalSeats();
+        }
+        for (Map.Entry<String, long[]> route : routes.entrySet())
+        {
+            long[] seats = route.getValue();
+            out.append("occupancy.").append(route.getKey()).append(' ').append(seats[0]).append('/').append(seats[1])
+               .append(' ').append(seats[1] == 0 ? 0 : seats[0] * 100 / seats[1]).append("%\n");
+        }
+    }
+
+    private static void appendCounter(StringBuilder out, String name, LongAdder counter) 
+    {
+        out.append(name).append(' ').append(counter.sum()).append('\n');
+    }
+
+    // Percentiles are in microseconds, the count is how many calls were timed
+    private static void appendLatency(StringBuilder out, String name, LatencyHistogram histogram) 
+    {
+        out.append(name).append(" sampled=").append(histogram.getCount());
+        if (histogram.getCount() > 0)
+        {
+            out.append(" p50=").append(micros(histogram.getValueAtPercentile(50)))
+               .append("us p90=").append(micros(histogram.getValueAtPercentile(90)))
+               .append("us p99=").append(micros(histogram.getValueAtPercentile(99)))
+               .append("us p99.9=").append(micros(histogram.getValueAtPercentile(99.9)))
+               .append("us max=").append(micros(histogram.getMax())).append("us");
+        }
+        out.append('\n');
+    }
+
+    private static String micros(long nanos) 
+    {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    // Rewrites the file with a fresh report every interval, from a background thread
+    // Each report is written next to the file and moved over it, so anything reading the file never sees half a report
+    public void startDumping(Path file, long intervalSeconds) 
+    {
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Writes one report to the file now
+    public void dump(Path file) 
+    {
+        StringBuilder report = new StringBuilder(1024);
+        appendReport(report);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try
+        {
+            Files.write(temp, report.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Stops the background dumps
+    @Override
+    public void close() 
+    {
+        if (dumper != null)
+        {
+            dumper.shutdownNow();
+        }
+    }
+}
+
+// Benchmarks is a small timing harness for the hot paths: booking (one thread and many), flight number lookup,
+// passport lookup, Passenger.toString and the flight listing. The "Metered" ones repeat a path with Metrics switched on
+// Run it with: java Mark13 --bench [name]
+// Every benchmark runs for each combination of fleet size and passengers per flight. It is warmed up first so the JIT
+// has compiled it, then timed over several rounds, and the mean time per operation and its spread are printed
+// The JMH benchmarks built by pom.xml (src/jmh/java) measure the main ones properly; this harness is the quick run that needs
+// nothing but a JDK. They build their fleets with buildFleet and emptyFlights, so both measure the same thing
+class Benchmarks 
+{
+    private static final int[] FLEET_SIZES = { 1000, 10000 };
+    private static final int[] PASSENGERS_PER_FLIGHT = { 10, 100 };
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final int LOOKUPS_PER_ROUND = 1000000;
+    // Results are added here so the JIT can't decide the work is unused and skip it
+    static volatile long sink;
+
+    // A fleet of flights that are already booked, with an index over them
+    static class Fleet 
+    {
+        ArrayList<Flight> flights = new ArrayList<>();
+        FlightIndex index = new FlightIndex();
+        ArrayList<Passenger> passengers = new ArrayList<>();
+        int passengersPerFlight;
+    }
+
+    // A benchmark gets a fleet and returns the part to be timed, which returns how many operations it did
+    // Anything done before returning (like building fresh flights to book into) is not timed
+    interface Benchmark 
+    {
+        LongSupplier prepare(Fleet fleet);
+    }
+
+    // Runs every benchmark whose name contains filter (all of them if filter is empty)
+    public static void run(String filter) 
+    {
+        LinkedHashMap<String, Benchmark> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("bookTicket", fleet -> bookAll(fleet, 1));
+        benchmarks.put("bookTicketMixedFleet", fleet -> bookAll(fleet, 1, mixedFlights(fleet.flights.size(), fleet.passengersPerFlight)));
+        benchmarks.put("bookSeatInClass", Benchmarks::bookClasses);
+        benchmarks.put("bookTicketThreads", fleet -> bookAll(fleet, Math.max(4, Runtime.getRuntime().availableProcessors())));
+        benchmarks.put("bookTicketMetered", metered(fleet -> bookAll(fleet, 1)));
+        benchmarks.put("bookTicketGuarded", guarded(fleet -> bookAll(fleet, 1)));
+        benchmarks.put("findFlightByNumber", Benchmarks::findFlights);
+        benchmarks.put("findFlightByNumberMetered", metered(Benchmarks::findFlights));
+        benchmarks.put("passportLookup", Benchmarks::findPassports);
+        benchmarks.put("passportLookupMetered", metered(Benchmarks::findPassports));
+        benchmarks.put("passengerToString", Benchmarks::passengerToString);
+        benchmarks.put("validatePassenger", Benchmarks::validatePassengers);
+        benchmarks.put("flightListing", Benchmarks::listFlights);
+        benchmarks.put("fareQuoteCached", fleet -> quoteFares(fleet, new FareQuotes(new LoadFactorPricing(), 60000, Clock.systemUTC())));
+        benchmarks.put("fareQuoteUncached", fleet -> quoteFares(fleet, new FareQuotes(new LoadFactorPricing(), 0, Clock.systemUTC())));
+        benchmarks.put("rotationPlan", Benchmarks::planRotations);
+
+        for (int fleetSize : FLEET_SIZES)
+        {
+            for (int passengersPerFlight : PASSENGERS_PER_FLIGHT)
+            {
+                Fleet fleet = buildFleet(fleetSize, passengersPerFlight);
+                for (Map.Entry<String, Benchmark> benchmark : benchmarks.entrySet())
+                {
+                    if (benchmark.getKey().contains(filter))
+                    {
+                        measure(benchmark.getKey(), benchmark.getValue(), fleet);
+                    }
+                }
+            }
+        }
+    }
+
+    // Warms up, then times the benchmark and prints the result
+    private static void measure(String name, Benchmark benchmark, Fleet fleet) 
+    {
+        for (int round = 0; round < WARMUP_ROUNDS; round++)
+        {
+            benchmark.prepare(fleet).getAsLong();
+        }
+        double[] nanosPerOp = new double[MEASURED_ROUNDS];
+        for (int round = 0; round < MEASURED_ROUNDS; round++)
+        {
+            LongSupplier timed = benchmark.prepare(fleet);
+            long start = System.nanoTime();
+            long operations = timed.getAsLong();
+            nanosPerOp[round] = (double) (System.nanoTime() - start) / operations;
+        }
+        double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+        double spread = Math.sqrt(Arrays.stream(nanosPerOp).map(x -> (x - mean) * (x - mean)).sum() / MEASURED_ROUNDS);
+        System.out.printf("%-26s fleet=%-6d passengers/flight=%-4d %12.1f ns/op  +- %.1f%n",
+                          name, fleet.flights.size(), fleet.passengersPerFlight, mean, spread);
+    }
+
+    // Takes everything that hooks into booking on all flights away again: listeners, guard, journal, metrics, fare quotes and
+    // passenger store, and the shard numbering. Booking benchmarks call it before they book, so they time the plain booking path
+    // whatever ran before them in the JVM. With none of these set, booking keeps nothing per passenger, so the same Passenger
+    // objects can be booked into fresh flights over and over
+    static void resetGlobalState() 
+    {
+        Flight.clearBookingListeners();
+        Flight.setBookingGuard(null);
+        Flight.setBookingJournal(null);
+        Flight.setMetrics(null);
+        Flight.setFareQuotes(null);
+        Flight.setPassengerStore(null);
+        Booking.useShard(0, 1);
+    }
+
+    // Builds flights that are exactly full, with every booking in the index
+    static Fleet buildFleet(int fleetSize, int passengersPerFlight) 
+    {
+        Fleet fleet = new Fleet();
+        fleet.passengersPerFlight = passengersPerFlight;
+        for (Flight flight : emptyFlights(fleetSize, passengersPerFlight))
+        {
+            fleet.flights.add(flight);
+            fleet.index.addFlight(flight);
+            for (int i = 0; i < passengersPerFlight; i++)
+            {
+                Passenger passenger = new Passenger("Passenger" + fleet.passengers.size(), 18 + i % 60, i % 2 == 0 ? "Male" : "Female",
+                                                    i % 20 == 0, "P" + fleet.passengers.size());
+                fleet.passengers.add(passenger);
+                fleet.index.onBooking(flight.bookSeat(passenger, null));
+            }
+        }
+        return fleet;
+    }
+
+    static ArrayList<Flight> emptyFlights(int fleetSize, int seats) 
+    {
+        ArrayList<Flight> flights = new ArrayList<>(fleetSize);
+        for (int i = 0; i < fleetSize; i++)
+        {
+            flights.add(new RegularFlight("BM" + i, "City" + i % 50, "City" + (i + 1) % 50, "08:00", "10:00", seats, 5000.00));
+        }
+        return flights;
+    }
+
+    // Every other flight a charter, so booking sees both kinds of flight
+    private static ArrayList<Flight> mixedFlights(int fleetSize, int seats) 
+    {
+        ArrayList<Flight> flights = new ArrayList<>(fleetSize);
+        for (int i = 0; i < fleetSize; i++)
+        {
+            flights.add(i % 2 == 0
+                        ? new RegularFlight("BM" + i, "City" + i % 50, "City" + (i + 1) % 50, "08:00", "10:00", seats, 5000.00)
+                        : new CharterFlight("BM" + i, "City" + i % 50, "City" + (i + 1) % 50, "08:00", "10:00", seats, 5000.00, "Charter" + i % 5));
+        }
+        return flights;
+    }
+
+    // Books the fleet's passengers into fresh copies of its flights until they are all full, spread over the given number of threads
+    private static LongSupplier bookAll(Fleet fleet, int threads) 
+    {
+        return bookAll(fleet, threads, emptyFlights(fleet.flights.size(), fleet.passengersPerFlight));
+    }
+
+    // The same into the given flights
+    private static LongSupplier bookAll(Fleet fleet, int threads, ArrayList<Flight> flights) 
+    {
+        ArrayList<Passenger> passengers = fleet.passengers;
+        return () -> {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++)
+            {
+                int first = t;
+                workers[t] = new Thread(() -> {
+                    long booked = 0;
+                    for (int i = first; i < passengers.size(); i += threads)
+                    {
+                        booked += flights.get(i % flights.size()).bookTicket(passengers.get(i)) ? 1 : 0;
+                    }
+                    sink += booked;
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers)
+            {
+                try
+                {
+                    worker.join();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return passengers.size();
+        };
+    }
+
+    // Books the passengers into mixed flights with a row of business class, the first passengers of each flight in business, the rest in economy
+    // Compared to bookTicket, this is what picking seats from a class's pool costs
+    private static LongSupplier bookClasses(Fleet fleet) 
+    {
+        ArrayList<Flight> flights = mixedFlights(fleet.flights.size(), fleet.passengersPerFlight);
+        for (Flight flight : flights)
+        {
+            flight.setCabins(0, 1);
+        }
+        int businessSeats = flights.get(0).getSeatMap().getSeatsPerRow();
+        ArrayList<Passenger> passengers = fleet.passengers;
+        return () -> {
+            long booked = 0;
+            for (int i = 0; i < passengers.size(); i++)
+            {
+                SeatClass seatClass = i / flights.size() < businessSeats ? SeatClass.BUSINESS : SeatClass.ECONOMY;
+                booked += flights.get(i % flights.size()).bookSeatInClass(passengers.get(i), seatClass) != null ? 1 : 0;
+            }
+            sink += booked;
+            return passengers.size();
+        };
+    }
+
+    // The same benchmark with metrics switched on, to see what measuring costs
+    private static Benchmark metered(Benchmark benchmark) 
+    {
+        return fleet -> {
+            Metrics metrics = new Metrics(fleet.flights);
+            Flight.setMetrics(metrics);
+            fleet.index.setMetrics(metrics);
+            LongSupplier timed = benchmark.prepare(fleet);
+            return () -> {
+                long operations = timed.getAsLong();
+                Flight.setMetrics(null);
+                fleet.index.setMetrics(null);
+                return operations;
+            };
+        };
+    }
+
+    // The same benchmark with double bookings checked for, every booking going into an index and the guard's filter as well
+    private static Benchmark guarded(Benchmark benchmark) 
+    {
+        return fleet -> {
+            FlightIndex index = new FlightIndex();
+            BookingGuard guard = new BookingGuard(index, fleet.passengers.size());
+            Flight.addBookingListener(index);
+            Flight.addBookingListener(guard);
+            Flight.setBookingGuard(guard);
+            LongSupplier timed = benchmark.prepare(fleet);
+            return () -> {
+                long operations = timed.getAsLong();
+                Flight.setBookingGuard(null);
+                Flight.removeBookingListener(guard);
+                Flight.removeBookingListener(index);
+                return operations;
+            };
+        };
+    }
+
+    private static LongSupplier findFlights(Fleet fleet) 
+    {
+        String[] numbers = randomSample(fleet.flights.size(), i -> fleet.flights.get(i).getFlightNumber());
+        return () -> {
+            long found = 0;
+            for (int i = 0; i < LOOKUPS_PER_ROUND; i++)
+            {
+                found += fleet.index.findFlight(numbers[i & (numbers.length - 1)]) != null ? 1 : 0;
+            }
+            sink += found;
+            return LOOKUPS_PER_ROUND;
+        };
+    }
+
+    // Looks up passports the way displayTicketDetails does, typed in lower case
+    private static LongSupplier findPassports(Fleet fleet) 
+    {
+        String[] passports = randomSample(fleet.passengers.size(), i -> fleet.passengers.get(i).getPassportNumber().toLowerCase(Locale.ROOT));
+        return () -> {
+            long found = 0;
+            for (int i = 0; i < LOOKUPS_PER_ROUND; i++)
+            {
+                found += fleet.index.findBookings(passports[i & (passports.length - 1)]).size();
+            }
+            sink += found;
+            return LOOKUPS_PER_ROUND;
+        };
+    }
+
+    private static LongSupplier passengerToString(Fleet fleet) 
+    {
+        return () -> {
+            long length = 0;
+            for (Passenger passenger : fleet.passengers)
+            {
+                length += passenger.toString().length();
+            }
+            sink += length;
+            return fleet.passengers.size();
+        };
+    }
+
+    // Checks every passenger's details the way a bulk upload does
+    private static LongSupplier validatePassengers(Fleet fleet) 
+    {
+        return () -> {
+            long valid = 0;
+            for (Passenger passenger : fleet.passengers)
+            {
+                valid += PassengerValidator.check(passenger) == null ? 1 : 0;
+            }
+            sink += valid;
+            return fleet.passengers.size();
+        };
+    }
+
+    // Lists every flight the same way the menu does, into a writer that throws the output away
+    private static LongSupplier listFlights(Fleet fleet) 
+    {
+        return () -> {
+            ListingWriter listing = new ListingWriter(Writer.nullWriter());
+            for (Flight flight : fleet.flights)
+            {
+                listing.flight(flight);
+            }
+            listing.flush();
+            return fleet.flights.size();
+        };
+    }
+
+    // Quotes every flight in the fleet over and over, as search pages would
+    private static LongSupplier quoteFares(Fleet fleet, FareQuotes quotes) 
+    {
+        int pages = 20;
+        return () -> {
+            long total = 0;
+            for (int page = 0; page < pages; page++)
+            {
+                for (Flight flight : fleet.flights)
+                {
+                    total += quotes.quote(flight);
+                }
+            }
+            sink += total;
+            return (long) pages * fleet.flights.size();
+        };
+    }
+
+    // Plans aircraft for a day of as many flights as the fleet has, between 50 airports, with one aircraft per 4 flights
+    // The time per op is per flight, so a whole day takes that times the fleet size
+    private static LongSupplier planRotations(Fleet fleet) 
+    {
+        Random random = new Random(42);
+        int[] sizes = { 70, 150, 180, 250 };
+        ArrayList<Flight> day = new ArrayList<>(fleet.flights.size());
+        for (int i = 0; i < fleet.flights.size(); i++)
+        {
+            int departure = 300 + random.nextInt(16 * 60);
+            int arrival = departure + 60 + random.nextInt(120);
+            day.add(new RegularFlight("RP" + i, "City" + random.nextInt(50), "City" + random.nextInt(50),
+                                      String.format("%02d:%02d", departure / 60, departure % 60), String.format("%02d:%02d", arrival / 60, arrival % 60),
+                                      sizes[random.nextInt(sizes.length)] - random.nextInt(20), 5000.00));
+        }
+        ArrayList<Aircraft> aircraft = new ArrayList<>();
+        for (int i = 0; i < day.size() / 4; i++)
+        {
+            aircraft.add(new Aircraft("VT-" + i, "Jet", sizes[i % sizes.length], "City" + i % 50));
+        }
+        RotationPlanner planner = new RotationPlanner(45);
+        return () -> {
+            sink += planner.plan(day, aircraft).getUnassignedCount();
+            return day.size();
+        };
+    }
+
+    // 65536 values picked at random, so lookups don't just hit the same few entries
+    static String[] randomSample(int size, IntFunction<String> value) 
+    {
+        Random random = new Random(42);
+        String[] sample = new String[1 << 16];
+        for (int i = 0; i < sample.length; i++)
+        {
+            sample[i] = value.apply(random.nextInt(size));
+        }
+        return sample;
+    }
+}
+
+// SelfTests checks the things that are easy to break and hard to see by hand: concurrent booking and cancelling (no seat sold
+// twice, counts exact), batches being all or nothing, the booking guard, and the journal bringing back the same bookings after
+// it has rolled over to a snapshot, including changed ones. Then one or two checks of each of the other parts: pricing, the waitlist,
+// seating, searches, the server and shards, reports and rotations. Run it with: java Mark13 --selftest (exits with 1 if any fail)
+// Each test builds its own flights and takes away any listeners, guard, store or journal it set, so they can run in one JVM
+class SelfTests 
+{
+    private static final int THREADS = 8;
+
+    interface Test 
+    {
+        void run() throws Exception;
+    }
+
+    // Runs every test and prints one line for each. Returns true if they all passed
+    public static boolean run() 
+    {
+        LinkedHashMap<String, Test> tests = new LinkedHashMap<>();
+        tests.put("concurrentBookingNeverOversells", SelfTests::concurrentBookingNeverOversells);
+        tests.put("concurrentBookAndCancel", SelfTests::concurrentBookAndCancel);
+        tests.put("batchIsAllOrNothing", SelfTests::batchIsAllOrNothing);
+        tests.put("guardRefusesDoubleBooking", SelfTests::guardRefusesDoubleBooking);
+        tests.put("storedPassengersOutliveCancellation", SelfTests::storedPassengersOutliveCancellation);
+        tests.put("journalReplayAfterSnapshot", SelfTests::journalReplayAfterSnapshot);
+        tests.put("journalKeepsOtherDepartures", SelfTests::journalKeepsOtherDepartures);
+        tests.put("rebookKeepsCabin", SelfTests::rebookKeepsCabin);
+        tests.put("pricedBeforeSeatIsClaimed", SelfTests::pricedBeforeSeatIsClaimed);
+        tests.put("serverTakesNamesWithSpaces", SelfTests::serverTakesNamesWithSpaces);
+        tests.put("timetableLoadsRowsInOrder", SelfTests::timetableLoadsRowsInOrder);
+        tests.put("journalSkipsEmptySegments", SelfTests::journalSkipsEmptySegments);
+        tests.put("rotationsIgnoreAirportCase", SelfTests::rotationsIgnoreAirportCase);
+        tests.put("validatorChecksEveryField", SelfTests::validatorChecksEveryField);
+        tests.put("routesKeepConnectionTimes", SelfTests::routesKeepConnectionTimes);
+        tests.put("adjacentSeatsStayInOneRow", SelfTests::adjacentSeatsStayInOneRow);
+        tests.put("fareQuotesDroppedOnBooking", SelfTests::fareQuotesDroppedOnBooking);
+        tests.put("waitlistPromotesByPriority", SelfTests::waitlistPromotesByPriority);
+        tests.put("histogramPercentilesWithinBucket", SelfTests::histogramPercentilesWithinBucket);
+        tests.put("shardsSplitFlightsAndReferences", SelfTests::shardsSplitFlightsAndReferences);
+        tests.put("analyticsTotalsMatchBookings", SelfTests::analyticsTotalsMatchBookings);
+        tests.put("nameSearchFindsPrefixesAndTypos", SelfTests::nameSearchFindsPrefixesAndTypos);
+        tests.put("poolsKeepCabinsAndBlockApart", SelfTests::poolsKeepCabinsAndBlockApart);
+
+        int failed = 0;
+        for (Map.Entry<String, Test> test : tests.entrySet())
+        {
+            try
+            {
+                test.getValue().run();
+                System.out.println("ok      " + test.getKey());
+            }
+            catch (Exception | AssertionError e)
+            {
+                failed++;
+                System.out.println("FAILED  " + test.getKey() + ": " + e);
+            }
+        }
+        System.out.println((tests.size() - failed) + " passed, " + failed + " failed");
+        return failed == 0;
+    }
+
+    // Many threads race for more passengers than there are seats, on both kinds of flight: exactly the seats are sold, each
+    // once, every passenger who got one is on the flight once, and nobody who was refused is
+    private static void concurrentBookingNeverOversells() throws Exception 
+    {
+        Flight[] flights = {
+            new RegularFlight("ST100", "Delhi", "Mumbai", "08:00", "10:00", 100, 5000.00),
+            new CharterFlight("ST101", "Delhi", "Mumbai", "08:00", "10:00", 37, 5000.00, "XYZ")
+        };
+        for (Flight flight : flights)
+        {
+            List<Booking> booked = Collections.synchronizedList(new ArrayList<>());
+            inParallel(thread -> {
+                for (int i = 0; i < 50; i++)
+                {
+                    Booking booking = flight.bookSeat(passenger(thread, i), null);
+                    if (booking != null)
                     {
-                        verification1=1;
+                        booked.add(booking);
                     }
-                    else
+                }
+            });
+            check(booked.size() == flight.getTotalSeats(), "sold " + booked.size() + " of " + flight.getTotalSeats() + " seats");
+            checkSeats(flight, booked);
+            check(flight.getAvailableSeats() == 0, flight.getAvailableSeats() + " seats left on a full flight");
+            Set<Passenger> seated = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Booking booking : booked)
+            {
+                seated.add(booking.getPassenger());
+            }
+            Set<Passenger> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Passenger passenger : flight.getPassengers())
+            {
+                check(seated.contains(passenger) && seen.add(passenger), passenger.getPassportNumber() + " is on board without a seat of their own");
+            }
+            check(seen.size() == booked.size(), seen.size() + " passengers on board after selling " + booked.size() + " seats");
+        }
+    }
+
+    // Threads book and cancel on a small flight at random, then all of them race to cancel what is left
+    // Every booking has its own seat, and the counts match what was booked minus what was cancelled
+    private static void concurrentBookAndCancel() throws Exception 
+    {
+        Flight flight = new RegularFlight("ST200", "Delhi", "Mumbai", "08:00", "10:00", 40, 5000.00);
+        AtomicInteger made = new AtomicInteger();
+        AtomicInteger cancelled = new AtomicInteger();
+        inParallel(thread -> {
+            Random random = new Random(thread);
+            ArrayList<Booking> mine = new ArrayList<>();
+            for (int i = 0; i < 5000; i++)
+            {
+                if (mine.isEmpty() || (mine.size() < 8 && random.nextBoolean()))
+                {
+                    Booking booking = flight.bookSeat(passenger(thread, i), null);
+                    if (booking != null)
+                    {
+                        mine.add(booking);
+                        made.incrementAndGet();
+                    }
+                }
+                else
+                {
+                    Booking booking = mine.remove(random.nextInt(mine.size()));
+                    check(flight.cancelBooking(booking), "could not cancel " + booking.getId());
+                    check(!flight.cancelBooking(booking), "cancelled " + booking.getId() + " twice");
+                    cancelled.incrementAndGet();
+                }
+            }
+        });
+        List<Booking> left = flight.getBookings();
+        check(left.size() == made.get() - cancelled.get(), left.size() + " bookings left, expected " + (made.get() - cancelled.get()));
+        checkSeats(flight, left);
+
+        inParallel(thread -> {
+            for (Booking booking : left)
+            {
+                if (flight.cancelBooking(booking))
+                {
+                    cancelled.incrementAndGet();
+                }
+            }
+        });
+        check(cancelled.get() == made.get(), "cancelled " + cancelled.get() + " of " + made.get() + " bookings");
+        check(flight.getBookedCount() == 0 && flight.getAvailableSeats() == 40,
+              flight.getBookedCount() + " booked and " + flight.getAvailableSeats() + " free on an empty flight");
+    }
+
+    // A group that doesn't fit is refused whole, and one that does fit gets a seat each
+    private static void batchIsAllOrNothing() 
+    {
+        Flight flight = new RegularFlight("ST300", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+        for (int i = 0; i < 4; i++)
+        {
+            flight.bookSeat(passenger(0, i), null);
+        }
+        ArrayList<Passenger> group = new ArrayList<>();
+        for (int i = 0; i < 7; i++)
+        {
+            group.add(passenger(1, i));
+        }
+        check(flight.bookTickets(group) == null, "booked 7 passengers into 6 seats");
+        check(flight.getBookedCount() == 4, flight.getBookedCount() + " booked after a refused group");
+        List<Booking> bookings = flight.bookTickets(group.subList(0, 6));
+        check(bookings != null && bookings.size() == 6, "a group of 6 did not fit into 6 seats");
+        checkSeats(flight, flight.getBookings());
+    }
+
+    // With a guard on, a passport can't be booked twice on one flight until the first booking is cancelled
+    private static void guardRefusesDoubleBooking() 
+    {
+        Flight flight = new RegularFlight("ST400", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+        FlightIndex index = new FlightIndex();
+        index.addFlight(flight);
+        BookingGuard guard = new BookingGuard(index, 100);
+        Flight.addBookingListener(index);
+        Flight.addBookingListener(guard);
+        Flight.setBookingGuard(guard);
+        try
+        {
+            Booking first = flight.bookSeat(passenger(0, 0), null);
+            try
+            {
+                flight.bookSeat(passenger(0, 0), null);
+                check(false, "booked the same passport twice");
+            }
+            catch (BookingConflictException e)
+            {
+                check(e.getConflict() == first, "the conflict is not the first booking");
+            }
+            check(flight.getBookedCount() == 1, flight.getBookedCount() + " booked after a refused double booking");
+            flight.cancelBooking(first);
+            check(flight.bookSeat(passenger(0, 0), null) != null, "could not book again after cancelling");
+        }
+        finally
+        {
+            Flight.setBookingGuard(null);
+            Flight.removeBookingListener(guard);
+            Flight.removeBookingListener(index);
+        }
+    }
+
+    // A cancelled booking still shows its own passenger after its record has gone to someone else, and records are reused
+    private static void storedPassengersOutliveCancellation() 
+    {
+        PassengerStore store = new PassengerStore();
+        Flight.setPassengerStore(store);
+        try
+        {
+            Flight flight = new RegularFlight("ST500", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+            Booking cancelled = flight.bookSeat(new Passenger("Asha", 30, "Female", false, "PA1"), null);
+            flight.cancelBooking(cancelled);
+            for (int i = 0; i < 1000; i++)
+            {
+                flight.cancelBooking(flight.bookSeat(passenger(1, i), null));
+            }
+            Passenger passenger = cancelled.getPassenger();
+            check(passenger.getName().equals("Asha") && passenger.getPassportNumber().equals("PA1"),
+                  "a cancelled booking now shows " + passenger.getName() + " " + passenger.getPassportNumber());
+            check(store.size() == 0, store.size() + " records held with nothing booked");
+        }
+        finally
+        {
+            Flight.setPassengerStore(null);
+        }
+    }
+
+    // Books, cancels and changes bookings with a journal that snapshots every few records, then recovers into fresh flights
+    // and checks the same bookings came back, in the same seats
+    private static void journalReplayAfterSnapshot() throws Exception 
+    {
+        File directory = Files.createTempDirectory("selftest").toFile();
+        try
+        {
+            ArrayList<Flight> flights = journalFlights();
+            FlightIndex index = journalIndex(flights);
+            BookingJournal journal = new BookingJournal(directory, flights, 5);
+            journal.recover(index);
+            journal.start();
+            Flight.addBookingListener(index);
+            Flight.setBookingJournal(journal);
+            try
+            {
+                List<Booking> booked = Collections.synchronizedList(new ArrayList<>());
+                inParallel(thread -> {
+                    for (int i = 0; i < 4; i++)
+                    {
+                        booked.add(flights.get(0).bookSeat(passenger(thread, i), null));
+                    }
+                });
+                for (int i = 0; i < 6; i++)
+                {
+                    flights.get(0).cancelBooking(booked.get(i));
+                }
+                for (int i = 6; i < 10; i++)
+                {
+                    check(flights.get(1).rebook(booked.get(i), null) != null, "could not change booking " + booked.get(i).getId());
+                }
+                check(flights.get(0).getBookedCount() == 22 && flights.get(1).getBookedCount() == 4,
+                      flights.get(0).getBookedCount() + " and " + flights.get(1).getBookedCount() + " booked, expected 22 and 4");
+            }
+            finally
+            {
+                Flight.setBookingJournal(null);
+                Flight.removeBookingListener(index);
+                journal.close();
+            }
+            String[] files = directory.list((dir, name) -> name.startsWith("snapshot-"));
+            check(files != null && files.length > 0, "no snapshot was taken");
+
+            ArrayList<Flight> restored = journalFlights();
+            FlightIndex restoredIndex = journalIndex(restored);
+            Flight.addBookingListener(restoredIndex);
+            try
+            {
+                new BookingJournal(directory, restored, 5).recover(restoredIndex);
+            }
+            finally
+            {
+                Flight.removeBookingListener(restoredIndex);
+            }
+            for (int i = 0; i < flights.size(); i++)
+            {
+                check(describe(restored.get(i)).equals(describe(flights.get(i))),
+                      flights.get(i).getFlightNumber() + " came back as " + describe(restored.get(i)) + " instead of " + describe(flights.get(i)));
+            }
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    // A run on another day leaves the first day's bookings out. It must not hand out their references again, drop them when it
+    // takes a snapshot, or have its own cancellations cancel them once the first day is back
+    private static void journalKeepsOtherDepartures() throws Exception 
+    {
+        File directory = Files.createTempDirectory("selftest").toFile();
+        try
+        {
+            // Ann's booking was made by an earlier process, with the reference this one is about to hand out
+            LocalDate firstDay = LocalDate.of(2030, 1, 1);
+            Booking ann = new Booking(Booking.newId() + 1, journalFlights(firstDay).get(0), new Passenger("Ann", 30, "Female", false, "PA1"), 0, 500000);
+            ByteBuffer record = BookingJournal.encode(ann);
+            Files.write(new File(directory, "journal-1.log").toPath(), Arrays.copyOf(record.array(), record.limit()));
+            Booking bob = inJournal(directory, firstDay.plusDays(1), flights -> {
+                check(flights.get(0).getBookedCount() == 0, "a booking for another day was restored");
+                Booking booking = flights.get(0).bookSeat(new Passenger("Bob", 30, "Male", false, "PB1"), null);
+                flights.get(0).cancelBooking(booking);
+                return booking;
+            });
+            check(bob.getId() != ann.getId(), "the next day's booking was given reference " + ann.getId() + " again");
+            String[] journals = directory.list((dir, name) -> name.equals("journal-1.log"));
+            check(journals != null && journals.length == 0, "the first day's journal was never replaced by a snapshot");
+            inJournal(directory, firstDay, flights -> {
+                String expected = ann.getId() + ":" + ann.getSeatNumber() + ":PA1";
+                check(describe(flights.get(0)).equals(expected), "the first day came back as " + describe(flights.get(0)) + " instead of " + expected);
+                return null;
+            });
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    // A change without a seat number keeps the passenger in the class they paid for, on this flight or another one
+    private static void rebookKeepsCabin() 
+    {
+        Flight from = new RegularFlight("ST700", "Delhi", "Mumbai", "08:00", "10:00", 40, 5000.00);
+        Flight to = new RegularFlight("ST701", "Delhi", "Mumbai", "12:00", "14:00", 40, 5000.00);
+        from.setCabins(1, 2);
+        to.setCabins(1, 2);
+        Booking business = from.bookSeatInClass(passenger(0, 0), SeatClass.BUSINESS);
+        Booking changed = to.rebook(business, null);
+        check(changed != null && to.getSeatMap().getSeatClass(changed.getSeat()) == SeatClass.BUSINESS,
+              "a business booking was changed to " + (changed == null ? "nothing" : changed.getSeatNumber()));
+        Booking economy = to.bookSeat(passenger(0, 1), null);
+        Booking moved = to.rebook(economy, null);
+        check(moved != null && to.getSeatMap().getSeatClass(moved.getSeat()) == SeatClass.ECONOMY,
+              "an economy booking was changed to " + (moved == null ? "nothing" : moved.getSeatNumber()));
+    }
+
+    // With load factor pricing, the booking that takes a flight into the next fare bucket pays the price it was quoted, not the
+    // higher one its own seat brings in. The same goes for every booking in a batch
+    private static void pricedBeforeSeatIsClaimed() 
+    {
+        Flight.setFareQuotes(new FareQuotes(new LoadFactorPricing(), 0, Clock.fixed(Instant.parse("2029-01-01T00:00:00Z"), ZoneOffset.UTC)));
+        try
+        {
+            Flight single = new RegularFlight("ST800", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+            single.scheduleOn(LocalDate.of(2030, 1, 1));
+            for (int i = 0; i < 4; i++)
+            {
+                single.bookSeat(passenger(0, i), null);
+            }
+            Booking fifth = single.bookSeat(passenger(0, 4), null);
+            check(fifth.getFareCents() == single.getBaseFareCents(), "the fifth of 10 seats sold at " + FareQuotes.format(fifth.getFareCents()));
+
+            Flight batch = new RegularFlight("ST801", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+            batch.scheduleOn(LocalDate.of(2030, 1, 1));
+            for (int i = 0; i < 4; i++)
+            {
+                batch.bookSeat(passenger(1, i), null);
+            }
+            for (Booking booking : batch.bookTickets(Arrays.asList(passenger(1, 4), passenger(1, 5))))
+            {
+                check(booking.getFareCents() == batch.getBaseFareCents(), "a batch taking 4 of 10 seats to 6 sold at " + FareQuotes.format(booking.getFareCents()));
+            }
+            check(batch.getFareCents() > batch.getBaseFareCents(), "the fare did not go up once 6 of 10 seats were sold");
+        }
+        finally
+        {
+            Flight.setFareQuotes(null);
+        }
+    }
+
+    // A quoted name with spaces in it is booked whole, and survives being passed on to a shard
+    private static void serverTakesNamesWithSpaces() throws Exception 
+    {
+        Flight flight = new RegularFlight("ST900", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+        Inventory inventory = new Inventory();
+        inventory.addFlight(flight);
+        FlightIndex index = journalIndex(Collections.singletonList(flight));
+        Flight.addBookingListener(index);
+        try (BookingServer server = new BookingServer(0, inventory, index))
+        {
+            String request = "BOOK ST900 \"Mary Ann Smith\" 30 Female No PM1 Economy";
+            String[] words = BookingServer.split(request);
+            check(Arrays.equals(BookingServer.split(BookingServer.join(words)), words), "the request changed on its way to a shard: " + BookingServer.join(words));
+            StringBuilder out = new StringBuilder();
+            server.execute(words, out);
+            check(out.toString().startsWith("OK "), "the booking was answered with " + out);
+            check(flight.getBookings().get(0).getPassenger().getName().equals("Mary Ann Smith"),
+                  "the passenger was booked as " + flight.getBookings().get(0).getPassenger().getName());
+        }
+        finally
+        {
+            Flight.removeBookingListener(index);
+        }
+    }
+
+    // The loader reads every kind of row in file order, skipping the header and comments, and refuses a flight number
+    // that is there twice instead of letting the second row hide the first
+    private static void timetableLoadsRowsInOrder() throws Exception 
+    {
+        Path file = Files.createTempFile("selftest", ".csv");
+        try
+        {
+            Files.write(file, Arrays.asList("flightNumber,source,destination,departureTime,arrivalTime,totalSeats,fare,charterCompany",
+                                            "# a comment",
+                                            "ST950,Delhi,Mumbai,08:00,10:00,120,5000.50",
+                                            "ST951, Mumbai , Goa ,11:00,12:15,40,3000,Sky Tours\r"));
+            List<Flight> loaded = new TimetableLoader().load(file);
+            check(loaded.size() == 2, loaded.size() + " flights loaded from 2 rows");
+            check(loaded.get(0).getFlightNumber().equals("ST950") && loaded.get(0).getTotalSeats() == 120 && loaded.get(0).getBaseFareCents() == 500050,
+                  "the first row came back as " + loaded.get(0).getFlightNumber());
+            check(loaded.get(1) instanceof CharterFlight && ((CharterFlight) loaded.get(1)).getCharterCompany().equals("Sky Tours")
+                  && loaded.get(1).getSource().equals("Mumbai") && loaded.get(1).getDestination().equals("Goa"),
+                  "the charter row came back as " + loaded.get(1).getFlightNumber() + " from " + loaded.get(1).getSource());
+
+            Files.write(file, Arrays.asList("ST950,Delhi,Mumbai,08:00,10:00,120,5000", "ST950,Delhi,Goa,09:00,11:00,120,5000"));
+            try
+            {
+                new TimetableLoader().load(file);
+                check(false, "a timetable with ST950 twice was loaded");
+            }
+            catch (IllegalArgumentException e)
+            {
+                check(e.getMessage().contains("ST950"), "the duplicate was reported as: " + e.getMessage());
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    // Runs that change nothing don't leave a segment each behind, and an empty one left by an older run is cleared away
+    private static void journalSkipsEmptySegments() throws Exception 
+    {
+        File directory = Files.createTempDirectory("selftest").toFile();
+        try
+        {
+            for (int run = 0; run < 3; run++)
+            {
+                inJournal(directory, LocalDate.of(2030, 1, 1), flights -> null);
+            }
+            String[] files = directory.list();
+            check(files != null && files.length == 0, "runs without changes left " + Arrays.toString(files));
+
+            check(new File(directory, "journal-7.log").createNewFile(), "could not make an empty segment");
+            Booking booked = inJournal(directory, LocalDate.of(2030, 1, 1), flights -> flights.get(0).bookSeat(passenger(0, 0), null));
+            files = directory.list((dir, name) -> name.startsWith("journal-"));
+            check(files != null && files.length == 0, "segments left after a snapshot of every write: " + Arrays.toString(files));
+            inJournal(directory, LocalDate.of(2030, 1, 1), flights -> {
+                check(flights.get(0).getBookings().size() == 1 && flights.get(0).getBookings().get(0).getId() == booked.getId(),
+                      "the booking came back as " + describe(flights.get(0)));
+                return null;
+            });
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    // One aircraft based at DELHI flies Delhi to Mumbai and back from MUMBAI, however the names are written, and a bad fleet
+    // line is reported with its line number
+    private static void rotationsIgnoreAirportCase() throws Exception 
+    {
+        List<Flight> day = Arrays.asList(new RegularFlight("ST960", "Delhi", "Mumbai", "08:00", "10:00", 100, 5000.00),
+                                         new RegularFlight("ST961", "MUMBAI", "delhi", "12:00", "14:00", 100, 5000.00));
+        for (Flight flight : day)
+        {
+            flight.scheduleOn(LocalDate.of(2030, 1, 1));
+        }
+        RotationPlan plan = new RotationPlanner(45).plan(day, Collections.singletonList(new Aircraft("VT-ST1", "Jet", 150, "DELHI")));
+        check(plan.getUnassignedCount() == 0 && plan.getAircraftUsed() == 1,
+              plan.getUnassignedCount() + " flights without an aircraft and " + plan.getAircraftUsed() + " aircraft used");
+
+        Path file = Files.createTempFile("selftest", ".csv");
+        try
+        {
+            Files.write(file, Arrays.asList("registration,type,seats,base", "VT-ST1,Jet,150,Delhi", "VT-ST2,Jet,many,Delhi"));
+            RotationPlanner.readFleet(file);
+            check(false, "a fleet with a seat count of many was read");
+        }
+        catch (IllegalArgumentException e)
+        {
+            check(e.getMessage().contains("line 3"), "the bad fleet line was reported as: " + e.getMessage());
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    // Names with more than one part, punctuation and accents pass, and each kind of bad detail is named
+    private static void validatorChecksEveryField() 
+    {
+        for (String name : new String[] { "Mary Ann Smith", "O'Neil", "Smith-Jones", "St. John", "Ren\u00e9" })
+        {
+            check(PassengerValidator.isValidName(name), name + " was refused");
+        }
+        for (String name : new String[] { "", "R2D2", " Ann", "-Ann", "Ann_Lee", "A".repeat(PassengerValidator.MAX_NAME_LENGTH + 1) })
+        {
+            check(!PassengerValidator.isValidName(name), "'" + name + "' was taken as a name");
+        }
+        check(PassengerValidator.isValidAge(0) && PassengerValidator.isValidAge(PassengerValidator.MAX_AGE)
+              && !PassengerValidator.isValidAge(-1) && !PassengerValidator.isValidAge(PassengerValidator.MAX_AGE + 1), "ages are checked wrongly");
+        check(PassengerValidator.isValidGender("female") && !PassengerValidator.isValidGender("F"), "genders are checked wrongly");
+        check(PassengerValidator.isValidPassport("AB1234") && !PassengerValidator.isValidPassport("AB-1234")
+              && !PassengerValidator.isValidPassport("") && !PassengerValidator.isValidPassport("1".repeat(PassengerValidator.MAX_PASSPORT_LENGTH + 1)),
+              "passports are checked wrongly");
+        check(PassengerValidator.check(new Passenger("Ann", 30, "Female", false, "PA1")) == null, "a good passenger was refused");
+        check("invalid age".equals(PassengerValidator.check(new Passenger("Ann", 300, "Female", false, "PA1"))), "an age of 300 was not named");
+        check("invalid passport number".equals(PassengerValidator.check(new Passenger("Ann", 30, "Female", false, "P A1"))),
+              "a passport with a space was not named");
+    }
+
+    // A connection is only made with at least MIN_CONNECTION_MINUTES and at most MAX_LAYOVER_MINUTES between the flights,
+    // airports are matched ignoring case, and itineraries come back soonest arrival first
+    private static void routesKeepConnectionTimes() 
+    {
+        List<Flight> day = Arrays.asList(new RegularFlight("ST970", "Delhi", "Mumbai", "08:00", "10:00", 100, 5000.00),
+                                         new RegularFlight("ST971", "Mumbai", "Goa", "11:00", "12:00", 100, 3000.00),
+                                         new RegularFlight("ST972", "Mumbai", "Goa", "10:15", "11:15", 100, 3000.00),
+                                         new RegularFlight("ST973", "Mumbai", "Goa", "17:00", "18:00", 100, 3000.00),
+                                         new RegularFlight("ST974", "Delhi", "Goa", "09:00", "13:00", 100, 7000.00),
+                                         new RegularFlight("ST975", "Mumbai", "Delhi", "11:30", "13:30", 100, 5000.00));
+        for (Flight flight : day)
+        {
+            flight.scheduleOn(LocalDate.of(2030, 1, 1));
+        }
+        RouteFinder finder = new RouteFinder(day);
+        String found = finder.search("delhi", "GOA", 0, Long.MAX_VALUE, 1).stream()
+                             .map(itinerary -> itinerary.getLegs().stream().map(Flight::getFlightNumber).collect(Collectors.joining("+")))
+                             .collect(Collectors.joining(" "));
+        check(found.equals("ST970+ST971 ST974"), "Delhi to Goa found " + found);
+        check(finder.search("Delhi", "Goa", 0, Long.MAX_VALUE, 0).size() == 1, "a direct search found a connection");
+        String next = finder.nextDepartures("MUMBAI", 0, 3).stream().map(Flight::getFlightNumber).collect(Collectors.joining(" "));
+        check(next.equals("ST972 ST971 ST975"), "the next departures from Mumbai were " + next);
+    }
+
+    // A group that fits in a row is seated in one row, past a row with a seat taken in the way, and threads seating groups
+    // at the same time never share a seat or split a group over two rows
+    private static void adjacentSeatsStayInOneRow() throws Exception 
+    {
+        SeatMap seatMap = SeatMap.forSeats(40);
+        seatMap.claim(seatMap.parseSeat("1B"));
+        String seated = Arrays.stream(seatMap.claimAdjacent(3)).mapToObj(seatMap::label).collect(Collectors.joining(" "));
+        check(seated.equals("2A 2B 2C"), "a group of 3 was seated in " + seated);
+        seated = Arrays.stream(seatMap.claimAdjacent(4)).mapToObj(seatMap::label).collect(Collectors.joining(" "));
+        check(seated.equals("3A 3B 3C 3D"), "a group of 4 was seated in " + seated);
+        check(seatMap.claimAdjacent(100) == null && seatMap.getAvailableSeats() == 32, "a group bigger than the aircraft took seats");
+
+        Flight flight = new RegularFlight("ST980", "Delhi", "Mumbai", "08:00", "10:00", 40, 5000.00);
+        List<List<Booking>> groups = Collections.synchronizedList(new ArrayList<>());
+        inParallel(thread -> {
+            for (int i = 0; ; i += 3)
+            {
+                List<Booking> group = flight.bookAdjacentSeats(Arrays.asList(passenger(thread, i), passenger(thread, i + 1), passenger(thread, i + 2)));
+                if (group == null)
+                {
+                    break;
+                }
+                groups.add(group);
+            }
+        });
+        ArrayList<Booking> booked = new ArrayList<>();
+        for (List<Booking> group : groups)
+        {
+            int row = group.get(0).getSeat() / 4;
+            for (int i = 0; i < group.size(); i++)
+            {
+                check(group.get(i).getSeat() == group.get(0).getSeat() + i && group.get(i).getSeat() / 4 == row,
+                      "a group was seated in " + group.stream().map(Booking::getSeatNumber).collect(Collectors.joining(" ")));
+            }
+            booked.addAll(group);
+        }
+        check(groups.size() == 10, groups.size() + " groups of 3 seated in 10 rows of 4");
+        checkSeats(flight, booked);
+    }
+
+    // A quote is worked out once and kept until it expires, unless a booking or cancellation on its flight drops it first
+    private static void fareQuotesDroppedOnBooking() 
+    {
+        AtomicInteger priced = new AtomicInteger();
+        LoadFactorPricing pricing = new LoadFactorPricing();
+        FareQuotes quotes = new FareQuotes((flight, minutes) -> {
+            priced.incrementAndGet();
+            return pricing.priceCents(flight, minutes);
+        }, 60000, Clock.fixed(Instant.parse("2029-01-01T00:00:00Z"), ZoneOffset.UTC));
+        Flight flight = new RegularFlight("ST990", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+        flight.scheduleOn(LocalDate.of(2030, 1, 1));
+        Flight.setFareQuotes(quotes);
+        Flight.addBookingListener(quotes);
+        try
+        {
+            check(flight.getFareCents() == flight.getFareCents() && priced.get() == 1, "the quote was worked out " + priced.get() + " times");
+            List<Booking> booked = flight.bookTickets(Arrays.asList(passenger(0, 0), passenger(0, 1), passenger(0, 2), passenger(0, 3), passenger(0, 4)));
+            long full = flight.getFareCents();
+            check(full > flight.getBaseFareCents(), "half full, the fare is still " + FareQuotes.format(full));
+            flight.cancelBooking(booked.get(0));
+            check(flight.getFareCents() == flight.getBaseFareCents(), "after a cancellation the fare is " + FareQuotes.format(flight.getFareCents()));
+        }
+        finally
+        {
+            Flight.setFareQuotes(null);
+            Flight.removeBookingListener(quotes);
+        }
+    }
+
+    // A full flight sells its overbooking allowance and no more, then the waitlist fills places as they come free:
+    // passengers with a disability first, everyone else in the order they joined
+    private static void waitlistPromotesByPriority() 
+    {
+        Flight flight = new RegularFlight("ST1000", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+        flight.setOverbookingPercent(20);
+        List<Booking> booked = new ArrayList<>();
+        for (int i = 0; i < 12; i++)
+        {
+            booked.add(flight.bookSeat(passenger(0, i), null));
+        }
+        check(!booked.contains(null) && booked.get(11).getSeat() < 0, "12 places were not sold on 10 seats with 20% overbooking");
+        check(flight.bookSeat(passenger(0, 12), null) == null && flight.getBookableSeats() == 0, "more than the overbooking allowance was sold");
+
+        Passenger first = new Passenger("Asha", 30, "Female", false, "PW1");
+        Passenger disabled = new Passenger("Bela", 40, "Female", true, "PW2");
+        Passenger last = new Passenger("Chen", 50, "Male", false, "PW3");
+        check(flight.joinWaitlist(first) == 1 && flight.joinWaitlist(disabled) == 2 && flight.joinWaitlist(last) == 3, "the waitlist did not grow by one each");
+
+        flight.cancelBooking(booked.get(0));
+        check(flight.getPassengers().contains(disabled) && !flight.getPassengers().contains(first), "a cancellation did not let the disabled passenger in first");
+        flight.cancelBooking(booked.get(1));
+        check(flight.getPassengers().contains(first) && !flight.getPassengers().contains(last) && flight.getWaitlistSize() == 1,
+              "a second cancellation did not let in the first to join");
+        flight.setOverbookingPercent(30);
+        check(flight.getPassengers().contains(last) && flight.getWaitlistSize() == 0, "raising the overbooking did not let the last passenger in");
+        check(flight.getBookedCount() == 13, flight.getBookedCount() + " booked on 10 seats with 30% overbooking");
+    }
+
+    // Values recorded from many threads are all counted, small values are exact, and a percentile is never below the true
+    // value and at most one bucket (1/16 of its power of two) above it
+    private static void histogramPercentilesWithinBucket() throws Exception 
+    {
+        LatencyHistogram small = new LatencyHistogram();
+        for (int value = 0; value < 16; value++)
+        {
+            small.record(value);
+        }
+        check(small.getValueAtPercentile(50) == 7 && small.getValueAtPercentile(100) == 15, "small values are not kept exactly");
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        inParallel(thread -> {
+            for (long value = 1; value <= 100000; value++)
+            {
+                histogram.record(value * 1000);
+            }
+        });
+        check(histogram.getCount() == THREADS * 100000L && histogram.getMax() == 100000000L,
+              histogram.getCount() + " values recorded, the largest " + histogram.getMax());
+        for (double percentile : new double[] { 50, 90, 99, 99.9 })
+        {
+            long exact = (long) Math.ceil(100000 * percentile / 100) * 1000;
+            long reported = histogram.getValueAtPercentile(percentile);
+            check(reported >= exact && reported <= exact + exact / 16, "p" + percentile + " is " + reported + " instead of about " + exact);
+        }
+        check(histogram.getValueAtPercentile(100) == histogram.getMax(), "p100 is not the largest value");
+        histogram.record(Long.MAX_VALUE);
+        check(histogram.getValueAtPercentile(100) == Long.MAX_VALUE, "the largest possible value is not kept");
+    }
+
+    // References handed out by a shard all belong to it and skip past any it was told are in use, and a router in front of
+    // two shard servers sends each booking to the shard that owns its flight and joins what the shards list
+    private static void shardsSplitFlightsAndReferences() throws Exception 
+    {
+        ArrayList<Flight> owned = new ArrayList<>();
+        for (int i = 0; owned.size() < 2; i++)
+        {
+            Flight flight = new RegularFlight("ST11" + i, "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+            if (ShardRouter.shardOf(flight.getFlightNumber(), 2) == owned.size())
+            {
+                owned.add(flight);
+            }
+        }
+        ArrayList<BookingServer> servers = new ArrayList<>();
+        ArrayList<Inventory> inventories = new ArrayList<>();
+        ExecutorService serving = Executors.newCachedThreadPool();
+        Booking.useShard(1, 3);
+        try
+        {
+            long reserved = Booking.newId() + 30;
+            Booking.reserveId(reserved);
+            for (int i = 0; i < 100; i++)
+            {
+                long id = Booking.newId();
+                check(id % 3 == 1 && id > reserved, "shard 1 of 3 handed out reference " + id + " after " + reserved + " was reserved");
+            }
+
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (Flight flight : owned)
+            {
+                Inventory inventory = new Inventory();
+                inventory.addFlight(flight);
+                Flight.addBookingListener(inventory);
+                inventories.add(inventory);
+                BookingServer server = new BookingServer(0, inventory, journalIndex(Collections.singletonList(flight)));
+                servers.add(server);
+                serving.execute(server::serve);
+                addresses.add(InetSocketAddress.createUnresolved("localhost", server.getPort()));
+            }
+            try (ShardRouter router = new ShardRouter(0, addresses))
+            {
+                for (int i = 0; i < 2; i++)
+                {
+                    StringBuilder out = new StringBuilder();
+                    router.execute(BookingServer.split("BOOK " + owned.get(i).getFlightNumber() + " Ann 30 Female No PS" + i), out);
+                    check(out.toString().startsWith("OK ") && owned.get(i).getBookedCount() == 1, "booking on shard " + i + " was answered with " + out);
+                }
+                StringBuilder flights = new StringBuilder();
+                router.execute(BookingServer.split("FLIGHTS"), flights);
+                StringBuilder passengers = new StringBuilder();
+                router.execute(BookingServer.split("PASSENGERS"), passengers);
+                check(flights.toString().split("\n").length == 2 && passengers.toString().contains("PS0") && passengers.toString().contains("PS1"),
+                      "the shards listed " + flights + " and " + passengers);
+            }
+        }
+        finally
+        {
+            Booking.useShard(0, 1);
+            for (BookingServer server : servers)
+            {
+                server.close();
+            }
+            serving.shutdownNow();
+            for (Inventory inventory : inventories)
+            {
+                Flight.removeBookingListener(inventory);
+            }
+        }
+    }
+
+    // The running route totals come out the same as adding up what is left on the flights after threads book and cancel at once
+    private static void analyticsTotalsMatchBookings() throws Exception 
+    {
+        List<Flight> route = Arrays.asList(new RegularFlight("ST1200", "Delhi", "Mumbai", "08:00", "10:00", 40, 5000.00),
+                                           new RegularFlight("ST1201", "Delhi", "Mumbai", "12:00", "14:00", 40, 4500.00));
+        BookingAnalytics analytics = new BookingAnalytics();
+        for (Flight flight : route)
+        {
+            analytics.addFlight(flight);
+        }
+        Flight.addBookingListener(analytics);
+        try
+        {
+            inParallel(thread -> {
+                for (int i = 0; i < 8; i++)
+                {
+                    Booking booking = route.get(i % 2).bookSeat(passenger(thread, i), null);
+                    if (i % 4 == 3)
                     {
-                        verification1=0;
+                        route.get(i % 2).cancelBooking(booking);
                     }
                 }
-                // After iterating through the entire string, if verification is 1 then error
-                // Else we exit the loop
-                if (verification1 == 1)
+            });
+            route.get(0).bookSeat(new Passenger("Dev", 10, "Male", true, "PC1"), null);
+            long bookings = 0;
+            long revenue = 0;
+            for (Flight flight : route)
+            {
+                for (Booking booking : flight.getBookings())
+                {
+                    bookings++;
+                    revenue += booking.getFareCents();
+                }
+            }
+            BookingAnalytics.RouteTotals totals = analytics.routeOf(route.get(0));
+            check(totals.getBookings() == bookings && totals.getRevenueCents() == revenue,
+                  totals.getBookings() + " bookings and " + totals.getRevenueCents() + " revenue counted, " + bookings + " and " + revenue + " made");
+            StringBuilder report = new StringBuilder();
+            analytics.appendReport(report);
+            check(report.indexOf("Booked: " + bookings + "/80") >= 0 && report.indexOf("0-17: 1 18-34: " + (bookings - 1)) >= 0
+                  && report.indexOf("Disabled: 1") >= 0, "the report says " + report);
+        }
+        finally
+        {
+            Flight.removeBookingListener(analytics);
+        }
+    }
+
+    // Names are found by any word, by prefix, without accents or punctuation and with a typo or two, prefix matches first,
+    // on one flight or all of them, and a cancelled booking is no longer found
+    private static void nameSearchFindsPrefixesAndTypos() 
+    {
+        Flight first = new RegularFlight("ST1300", "Delhi", "Mumbai", "08:00", "10:00", 10, 5000.00);
+        Flight second = new RegularFlight("ST1301", "Delhi", "Mumbai", "12:00", "14:00", 10, 5000.00);
+        NameIndex names = new NameIndex();
+        Flight.addBookingListener(names);
+        try
+        {
+            Booking ann = first.bookSeat(new Passenger("Ann Lee", 30, "Female", false, "PN1"), null);
+            second.bookSeat(new Passenger("Annabel Smith", 30, "Female", false, "PN2"), null);
+            second.bookSeat(new Passenger("Ren\u00e9 O'Neil", 30, "Male", false, "PN3"), null);
+            first.bookSeat(new Passenger("Jonathan Parker", 30, "Male", false, "PN4"), null);
+            first.bookSeat(new Passenger("Mia Lea", 30, "Female", false, "PN5"), null);
+
+            check(found(names, "ann", null).equals("PN1 PN2"), "ann found " + found(names, "ann", null));
+            check(found(names, "lee ann", null).equals("PN1"), "lee ann found " + found(names, "lee ann", null));
+            check(found(names, "rene oneil", null).equals("PN3"), "rene oneil found " + found(names, "rene oneil", null));
+            check(found(names, "jonathon", null).equals("PN4"), "jonathon found " + found(names, "jonathon", null));
+            check(found(names, "lee", null).equals("PN1 PN5"), "lee found " + found(names, "lee", null));
+            check(found(names, "ann", second).equals("PN2"), "ann on one flight found " + found(names, "ann", second));
+            first.cancelBooking(ann);
+            check(found(names, "lee", null).equals("PN5"), "after cancelling, lee found " + found(names, "lee", null));
+        }
+        finally
+        {
+            Flight.removeBookingListener(names);
+        }
+    }
+
+    // The passports of what a name search found, in the order it found them
+    private static String found(NameIndex names, String query, Flight flight) 
+    {
+        return names.search(query, flight, 10).stream().map(booking -> booking.getPassenger().getPassportNumber()).collect(Collectors.joining(" "));
+    }
+
+    // Each class and the charter block sell only their own seats at their own price: economy runs out while the block still has
+    // room, block seats can't be had by number, and a block never takes more than economy has
+    private static void poolsKeepCabinsAndBlockApart() 
+    {
+        CharterFlight flight = new CharterFlight("ST1400", "Delhi", "Goa", "08:00", "10:30", 40, 5000.00, "Sky Tours");
+        flight.setCabins(1, 2);
+        flight.allocateBlock(8);
+        BookingPolicy policy = flight.getPolicy();
+        check(policy.start(BookingPolicy.ECONOMY) == 12 && policy.end(BookingPolicy.ECONOMY) == 32 && flight.getBlockSeats() == 8,
+              "economy is seats " + policy.start(BookingPolicy.ECONOMY) + " to " + policy.end(BookingPolicy.ECONOMY) + " with a block of " + flight.getBlockSeats());
+
+        int i = 0;
+        for (SeatClass seatClass : SeatClass.values())
+        {
+            int seats = policy.end(seatClass.ordinal()) - policy.start(seatClass.ordinal());
+            for (int sold = 0; sold < seats; sold++)
+            {
+                Booking booking = flight.bookSeatInClass(passenger(0, i++), seatClass);
+                check(booking != null && flight.getSeatMap().getSeatClass(booking.getSeat()) == seatClass
+                      && booking.getFareCents() == flight.getBaseFareCents() * seatClass.getFarePercent() / 100,
+                      seatClass + " seat " + sold + " was sold as " + (booking == null ? "nothing" : booking.getSeatNumber() + " at " + booking.getFareCents()));
+            }
+            check(flight.bookSeatInClass(passenger(0, i++), seatClass) == null, "more " + seatClass + " seats were sold than it has");
+        }
+        check(flight.bookSeat(passenger(0, i++), null) == null, "economy sold a seat from the block");
+        check(flight.bookSeat(passenger(0, i++), flight.getSeatMap().label(32)) == null, "a block seat was sold by its number");
+        Booking block = flight.bookChoice(passenger(0, i++), "Block");
+        check(block != null && block.getSeat() >= 32, "the company could not book its block");
+
+        CharterFlight greedy = new CharterFlight("ST1401", "Delhi", "Goa", "08:00", "10:30", 40, 5000.00, "Sky Tours");
+        greedy.setCabins(1, 2);
+        greedy.allocateBlock(1000);
+        check(greedy.getBlockSeats() == 28 && greedy.getPolicy().start(BookingPolicy.BLOCK) == 12, "a block of 1000 took " + greedy.getBlockSeats() + " seats");
+    }
+
+    interface JournalRun 
+    {
+        Booking run(List<Flight> flights) throws Exception;
+    }
+
+    // One run of the program as far as the journal goes: the flights are put on the given day, whatever the directory holds is
+    // recovered into them, then the body runs with a journal that snapshots after every write
+    private static Booking inJournal(File directory, LocalDate day, JournalRun body) throws Exception 
+    {
+        ArrayList<Flight> flights = journalFlights(day);
+        FlightIndex index = journalIndex(flights);
+        BookingJournal journal = new BookingJournal(directory, flights, 1);
+        Flight.addBookingListener(index);
+        try
+        {
+            journal.recover(index);
+            journal.start();
+            Flight.setBookingJournal(journal);
+            try
+            {
+                return body.run(flights);
+            }
+            finally
+            {
+                Flight.setBookingJournal(null);
+                journal.close();
+            }
+        }
+        finally
+        {
+            Flight.removeBookingListener(index);
+        }
+    }
+
+    // Two flights on a fixed day, so both runs in the journal test put them on the same departure
+    private static ArrayList<Flight> journalFlights() 
+    {
+        return journalFlights(LocalDate.of(2030, 1, 1));
+    }
+
+    private static ArrayList<Flight> journalFlights(LocalDate day) 
+    {
+        ArrayList<Flight> flights = new ArrayList<>();
+        flights.add(new RegularFlight("ST600", "Delhi", "Mumbai", "08:00", "10:00", 40, 5000.00));
+        flights.add(new RegularFlight("ST601", "Delhi", "Mumbai", "12:00", "14:00", 40, 5000.00));
+        for (Flight flight : flights)
+        {
+            flight.scheduleOn(day);
+        }
+        return flights;
+    }
+
+    private static void deleteDirectory(File directory) 
+    {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files)
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static FlightIndex journalIndex(List<Flight> flights) 
+    {
+        FlightIndex index = new FlightIndex();
+        for (Flight flight : flights)
+        {
+            index.addFlight(flight);
+        }
+        return index;
+    }
+
+    // Every booking on the flight as reference, seat and passport, in reference order
+    private static String describe(Flight flight) 
+    {
+        return flight.getBookings().stream()
+                     .sorted(Comparator.comparingLong(Booking::getId))
+                     .map(booking -> booking.getId() + ":" + booking.getSeatNumber() + ":" + booking.getPassenger().getPassportNumber())
+                     .collect(Collectors.joining(" "));
+    }
+
+    // A passenger with a passport that is different for every thread and number
+    private static Passenger passenger(int thread, int number) 
+    {
+        return new Passenger("Passenger", 30, "Female", false, "T" + thread + "N" + number);
+    }
+
+    // Checks the bookings are what the flight holds, each in a seat of its own, and the free seats add up
+    private static void checkSeats(Flight flight, List<Booking> bookings) 
+    {
+        HashSet<Integer> seats = new HashSet<>();
+        for (Booking booking : bookings)
+        {
+            check(seats.add(booking.getSeat()), "seat " + booking.getSeatNumber() + " was sold twice");
+        }
+        check(flight.getBookedCount() == bookings.size(), flight.getBookedCount() + " booked, expected " + bookings.size());
+        check(flight.getAvailableSeats() == flight.getTotalSeats() - bookings.size(),
+              flight.getAvailableSeats() + " free seats with " + bookings.size() + " of " + flight.getTotalSeats() + " booked");
+    }
+
+    // Runs the body on every thread at once and waits for them all, rethrowing the first failure
+    private static void inParallel(IntConsumer body) throws Exception 
+    {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Future<?>> running = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++)
+        {
+            int number = thread;
+            running.add(threads.submit(() -> {
+                start.await();
+                body.accept(number);
+                return null;
+            }));
+        }
+        start.countDown();
+        try
+        {
+            for (Future<?> future : running)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+    }
+
+    private static void check(boolean condition, String message) 
+    {
+        if (!condition)
+        {
+            throw new IllegalStateException(message);
+        }
+    }
+}
+
+// Main method 
+public class Mark13
+{
+    public static Scanner scanner = new Scanner(System.in);
+    public static ArrayList<Flight> flights = new ArrayList<>();
+    // Hash index over flights and bookings, used for all lookups
+    public static FlightIndex index = new FlightIndex();
+    // Route search index, built the first time it is needed and thrown away whenever a flight is added
+    private static RouteFinder routeFinder;
+    // Saves every booking to disk, null if the data directory could not be used
+    private static BookingJournal journal;
+    // Current prices, each quote is kept for 30 seconds or until the flight is booked
+    public static FareQuotes fares = new FareQuotes(new LoadFactorPricing(), 30000, Clock.systemDefaultZone());
+    // The day the timetable's HH:mm times are on, or null when every flight is on its next departure from when the program started
+    private static LocalDate timetableDate;
+    // Number of bookings between two snapshots of the booking journal
+    private static final long SNAPSHOT_INTERVAL = 100000;
+    // Booking and lookup counts, timings and route occupancy
+    public static Metrics metrics = new Metrics(flights);
+    // Bookings, revenue and demographics per route, for the booking report
+    public static BookingAnalytics analytics = new BookingAnalytics();
+    // Every booking by the words of the passenger's name
+    public static NameIndex names = new NameIndex();
+    // Refuses to book a passport twice on a flight, or on two flights at the same time
+    public static BookingGuard guard = new BookingGuard(index, 1 << 20);
+    // Snapshots of all the flights for the listings, so showing them never holds up booking
+    public static Inventory inventory = new Inventory();
+    // Most passengers a name search shows
+    private static final int NAME_SEARCH_LIMIT = 50;
+    // Which aircraft flies each flight, null when no fleet was given
+    private static RotationPlan rotations;
+    // private static boolean True;
+
+    // How the program is run, printed when an option is not valid
+    // Without --timetable the timetable is flights.csv in the directory that holds the data directory
+    private static final String USAGE = String.join("\n",
+        "Usage:",
+        "  java Mark13 [--timetable flights.csv] [--data dir] [--overbook percent]   menu",
+        "  java Mark13 [--timetable ...] [--data ...] --server port    headless server, see BookingServer",
+        "      add --metrics file [--metrics-interval seconds] to either of these to have a metrics report written to file regularly",
+        "      add --shard i/N to a server to make it shard i of N, holding only its share of the flights",
+        "      add --compact-passengers to either to keep booked passengers off the heap, see PassengerStore",
+        "      add --date yyyy-MM-dd to either to put the timetable's HH:mm times on that day instead of each flight's next departure",
+        "      add --fleet aircraft.csv [--turnaround minutes] to either to put the flights on aircraft, see RotationPlanner",
+        "      add --charter-block percent to either to hold that share of every charter flight's seats for its company, see BookingPolicy",
+        "  java Mark13 --router port --shards host:port,host:port,...  one server in front of shards 0..N-1, see ShardRouter",
+        "  java Mark13 --loadgen host:port [--clients n] [--requests n]",
+        "  java Mark13 --bench [name]                                 timing harness, see Benchmarks",
+        "  java Mark13 --selftest                                     checks booking, cancelling and the journal, see SelfTests");
+
+    public static void main(String [] args) 
+    {
+        // The benchmarks build their own flights
+        if (args.length > 0 && args[0].equals("--bench"))
+        {
+            Benchmarks.run(args.length > 1 ? args[1] : "");
+            return;
+        }
+        // The self-tests build their own flights
+        if (args.length > 0 && args[0].equals("--selftest"))
+        {
+            if (!SelfTests.run())
+            {
+                System.exit(1);
+            }
+            return;
+        }
+
+        // The load generator only talks to a server, it doesn't need any flights of its own
+        String loadTarget = optionValue(args, "--loadgen", null);
+        if (loadTarget != null)
+        {
+            Integer clients = intOption(args, "--clients", 100, 1, 1 << 20);
+            Integer requests = clients == null ? null : intOption(args, "--requests", 1000, 1, Integer.MAX_VALUE);
+            if (requests != null)
+            {
+                runLoadGenerator(loadTarget, clients, requests);
+            }
+            return;
+        }
+
+        // The router doesn't hold any flights either, the shards do
+        String routerPort = optionValue(args, "--router", null);
+        if (routerPort != null)
+        {
+            Integer port = intOption(args, "--router", 0, 0, 65535);
+            if (port != null)
+            {
+                runRouter(port, optionValue(args, "--shards", ""));
+            }
+            return;
+        }
+
+        // A shard only keeps the flights it owns, and hands out booking references no other shard will
+        int[] shard = parseShard(optionValue(args, "--shard", "0/1"));
+        if (shard == null)
+        {
+            System.out.println("Invalid --shard, expected i/N with 0 <= i < N");
+            System.out.println(USAGE);
+            return;
+        }
+        Booking.useShard(shard[0], shard[1]);
+
+        // Passengers have to go into the store from the first booking on, including the ones the journal restores
+        if (hasOption(args, "--compact-passengers"))
+        {
+            Flight.setPassengerStore(new PassengerStore());
+        }
+
+        // The index hears about every booking so passport lookups stay up to date
+        Flight.addBookingListener(index);
+        // Nobody can be booked twice on a flight or on two flights at the same time. The guard hears about bookings right after the index
+        Flight.addBookingListener(guard);
+        Flight.setBookingGuard(guard);
+        // The report totals and the name search are kept up to date with every booking, including the ones the journal restores
+        Flight.addBookingListener(analytics);
+        Flight.addBookingListener(names);
+        Flight.addBookingListener(inventory);
+        // Prices change as flights fill up, so the fare quotes are dropped on every booking
+        Flight.setFareQuotes(fares);
+        Flight.addBookingListener(fares);
+
+        // Every number on the command line is checked before anything is loaded
+        Integer overbookingPercent = intOption(args, "--overbook", 0, 0, 1000);
+        Integer turnaroundMinutes = overbookingPercent == null ? null : intOption(args, "--turnaround", 45, 0, 24 * 60);
+        Integer charterBlockPercent = turnaroundMinutes == null ? null : intOption(args, "--charter-block", 0, 0, 100);
+        Integer metricsInterval = charterBlockPercent == null ? null : intOption(args, "--metrics-interval", 10, 1, Integer.MAX_VALUE);
+        boolean serving = optionValue(args, "--server", null) != null;
+        Integer serverPort = metricsInterval == null || !serving ? null : intOption(args, "--server", 0, 0, 65535);
+        if (metricsInterval == null || (serving && serverPort == null))
+        {
+            return;
+        }
+
+        // Initializing the flights with the data from the timetable file
+        // Without --timetable it is flights.csv next to the data directory, wherever the program was started from
+        File dataDirectory = new File(optionValue(args, "--data", "data"));
+        String timetable = optionValue(args, "--timetable", null);
+        Path timetableFile = timetable != null ? Paths.get(timetable) : dataDirectory.getAbsoluteFile().toPath().resolveSibling("flights.csv");
+        if (timetable == null && !Files.isRegularFile(timetableFile))
+        {
+            System.out.println("No timetable found at " + timetableFile + ", next to the data directory. Give one with --timetable file");
+            System.out.println(USAGE);
+            return;
+        }
+        if (!loadTimetable(timetableFile, shard[0], shard[1]))
+        {
+            return;
+        }
+
+        // Flights with plain HH:mm times are put on a date, so they can be ordered and compared across midnight
+        // This happens before the journal is replayed: saved bookings only come back onto the same departure they were made for
+        String date = optionValue(args, "--date", null);
+        try
+        {
+            timetableDate = date == null ? null : LocalDate.parse(date);
+        }
+        catch (DateTimeException e)
+        {
+            System.out.println("Invalid --date, expected yyyy-MM-dd");
+            return;
+        }
+        Instant startedAt = Instant.now();
+        for (Flight flight : flights)
+        {
+            if (timetableDate == null)
+            {
+                flight.scheduleNext(startedAt);
+            }
+            else
+            {
+                flight.scheduleOn(timetableDate);
+            }
+        }
+
+        // Every flight may sell this percentage of its seats again as overbooking. Set before the journal is replayed, since saved bookings may use it
+        for (Flight flight : flights)
+        {
+            flight.setOverbookingPercent(overbookingPercent);
+        }
+
+        // Flights are put on aircraft before the journal is replayed, since a flight's seat numbers depend on the aircraft's size
+        String fleetFile = optionValue(args, "--fleet", null);
+        if (fleetFile != null && !planRotations(Paths.get(fleetFile), turnaroundMinutes))
+        {
+            return;
+        }
+
+        // Charter flights hold this percentage of their seats at the back for their company
+        for (Flight flight : flights)
+        {
+            if (flight instanceof CharterFlight && charterBlockPercent > 0)
+            {
+                ((CharterFlight) flight).allocateBlock(flight.getTotalSeats() * charterBlockPercent / 100);
+            }
+        }
+
+        // Bookings from earlier runs are loaded back from the data directory, then every new booking is saved there
+        openJournal(dataDirectory);
+
+        // Measuring starts after the journal is replayed, so restored bookings aren't counted as new ones
+        Flight.setMetrics(metrics);
+        index.setMetrics(metrics);
+        Flight.addBookingListener(metrics);
+        String metricsFile = optionValue(args, "--metrics", null);
+        if (metricsFile != null)
+        {
+            metrics.startDumping(Paths.get(metricsFile), metricsInterval);
+        }
+
+        // Headless mode: serve requests over a socket instead of showing the menu
+        if (serverPort != null)
+        {
+            runServer(serverPort);
+            return;
+        }
+
+        // variable to stay in a menu-driven loop till exit
+        boolean running = true;
+        while (running) 
+        {
+            // Menu options
+            System.out.println("");
+            System.out.println("\n*** Airline Reservation System Menu ***");
+            System.out.println("1. View available flights");
+            System.out.println("2. Book a ticket");
+            System.out.println("3. Display all passengers");
+            System.out.println("4. Display ticket details");
+            System.out.println("5. Search routes");
+            System.out.println("6. Bulk booking from file");
+            System.out.println("7. Export passenger lists to file");
+            System.out.println("8. Cancel a booking");
+            System.out.println("9. Change a booking");
+            System.out.println("10. Next departures from an airport");
+            System.out.println("11. Booking report");
+            System.out.println("12. Search passengers by name");
+            System.out.println("13. Aircraft rotations");
+            System.out.println("14. Exit");
+            System.out.print("Enter your choice: ");
+            int choice = scanner.nextInt();
+
+            // Switch case for entered choice
+            switch (choice) 
+            {
+                case 1:
+                    displayAvailableFlights();
+                    break;
+                case 2:
+                    bookTicket();
+                    break;
+                case 3:
+                    displayAllPassengers();
+                    break;
+                case 4:
+                    displayTicketDetails();
+                    break;
+                case 5:
+                    searchRoutes();
+                    break;
+                case 6:
+                    bulkBooking();
+                    break;
+                case 7:
+                    exportManifests();
+                    break;
+                case 8:
+                    cancelBooking();
+                    break;
+                case 9:
+                    changeBooking();
+                    break;
+                case 10:
+                    displayNextDepartures();
+                    break;
+                case 11:
+                    displayBookingReport();
+                    break;
+                case 12:
+                    searchPassengers();
+                    break;
+                case 13:
+                    displayRotations();
+                    break;
+                case 14:
+                    running = false;
+                    closeJournal();
+                    System.out.println("");
+                    System.out.println("Exiting the program. Thank you for using the Airline Reservation System :)");
+                    System.out.println("");
+                    break;
+                default:
+                    System.out.println("Invalid choice. Please select a valid option.");
+            }
+        }
+    }
+
+    // Displaying the flights initialised in the array list
+    private static void displayAvailableFlights() 
+    {
+        ListingWriter listing = ListingWriter.toConsole();
+        listing.line("\nAvailable flights:");
+        // this for loop means that in every iteration, it takes one instance from "flights" of class Type "Flight" and stores it as "flight" 
+        // every flight is shown as it was at one moment, even if other bookings come in while the listing is printed
+        for (FlightSnapshot flight : inventory.snapshot().getFlights()) 
+        {
+            // adds the flight details to the listing, which is printed in big pieces rather than one line at a time
+            listing.flight(flight);
+        }
+        listing.flush();
+    }
+    
+    //Method to book flight tickets
+    private static void bookTicket() 
+    {
+        // Before booking, it displays all available flights
+        displayAvailableFlights();
+        System.out.println("");
+        System.out.print("\nEnter flight number to book ticket: ");
+        String flightNumber = scanner.next();
+
+        //Checks if entered flight number exists in the the initialised flights array list
+        Flight selectedFlight = findFlightByNumber(flightNumber);
+
+        if (selectedFlight != null) 
+        {
+            //Error handling to check if passenger name entered is valid or not(Checks if entered string contains a number)
+            boolean correct_name = false;
+            String name = "";
+            while (correct_name == false)
+            {  
+            try
+            {
+                System.out.print("Enter name: ");
+                name = scanner.next();
+                // The whole name is checked, stopping at the first character that isn't allowed
+                if (!PassengerValidator.isValidName(name))
                     {
                         throw new IllegalArgumentException("Invalid name");
                     }
@@ -413,7 +7928,7 @@ public class Mark13
             {
                 System.out.print("Enter passenger age: ");
                 age = scanner.nextInt();
-                if (age<0 || age>110)
+                if (!PassengerValidator.isValidAge(age))
                 {
                     throw new IllegalArgumentException("Invalid age");
                 }
@@ -440,9 +7955,7 @@ public class Mark13
                 gender = scanner.next();
                 
                 // Gender must be between the mentioned options
-                if (!gender.equals("Male") && !gender.equals("male") && 
-                    !gender.equals("Female") && !gender.equals("female") &&
-                    !gender.equals("Other") && !gender.equals("other"))
+                if (!PassengerValidator.isValidGender(gender))
                 {
                     throw new IllegalArgumentException("Invalid gender");
                 }
@@ -472,29 +7985,8 @@ public class Mark13
             {
                 System.out.print("Enter passport number: ");
                 passportNumber = scanner.next();
-                // verification acts like a count
-                // If even a single special character is discovered, verification is set to 1
-                int verification = 0;
-                for (int i = 0; i<passportNumber.length(); i++)
-                {
-                    char x = passportNumber.charAt(i);
-                    if (x =='`' || x =='~' || x =='!' || x =='@' || 
-                        x =='#' || x =='$' || x =='%' || x =='^' || 
-                        x =='&' || x =='*' || x =='(' || x ==')' || 
-                        x =='-' || x =='_' || x =='+' || x =='=' || 
-                        x ==';' || x ==':' || x =='<' || x =='>' || 
-                        x =='.' || x =='?' || x =='"' || x =='|')
-                    {
-                        verification=1;
-                    }
-                    else
-                    {
-                        verification=0;
-                    }
-                }
-                // After iterating through the entire string, if verification is 1 then error
-                // Else we exit the loop
-                if (verification == 1)
+                // Only letters and digits are allowed, the first other character rejects it
+                if (!PassengerValidator.isValidPassport(passportNumber))
                     {
                         throw new IllegalArgumentException("Invalid passport number");
                     }
@@ -516,21 +8008,64 @@ public class Mark13
             // then we create a new object of Passenger class under the name passenger
             Passenger passenger = new Passenger(name, age, gender, isDisability, passportNumber);
 
-            // Here the bookticket() function takes passenger as an argument and checks if seats are left. If yes, the ticket is booked and details are entered
-            if (selectedFlight.bookTicket(passenger)) 
+            // The passenger can either pick a seat, a class, or take the first free one
+            System.out.print(selectedFlight instanceof CharterFlight
+                             ? "Enter seat number (e.g. 12C), class (First/Business/Economy), Block for the company's block, or Any: "
+                             : "Enter seat number (e.g. 12C), class (First/Business/Economy) or Any: ");
+            String seatNumber = scanner.next();
+            if (seatNumber.equalsIgnoreCase("Any"))
+            {
+                seatNumber = null;
+            }
+
+            // Here the bookSeat() function takes passenger as an argument and checks if the seat is free. If yes, the ticket is booked and details are entered
+            Booking booking;
+            try
+            {
+                booking = selectedFlight.bookChoice(passenger, seatNumber);
+            }
+            catch (BookingConflictException e)
+            {
+                // The same passport can't be on this flight twice, or on two flights at the same time
+                System.out.println("Sorry, " + e.getMessage() + ".");
+                return;
+            }
+            catch (BookingNotSavedException e)
+            {
+                System.out.println("Sorry, " + e.getMessage() + ". Nothing was booked.");
+                return;
+            }
+            if (booking != null) 
             {
                 System.out.println("--------------------------------");
                 System.out.println("Ticket booked successfully!");
+                System.out.println("Booking Reference: " + booking.getId());
+                System.out.println("Seat Number: " + booking.getSeatNumber());
+                System.out.println("Fare Paid: " + FareQuotes.format(booking.getFareCents()));
                 System.out.println("Passenger Details:");
                 passenger.displayDetails();
                 System.out.println("Flight Details:");
                 selectedFlight.displayDetails();
                 System.out.println("\n--------------------------------");
             } 
+            else if (seatNumber != null && selectedFlight.getAvailableSeats() > 0)
+            {
+                // The flight still has room, just not in the seat (or class) that was asked for
+                System.out.println(SeatClass.parse(seatNumber) != null || seatNumber.equalsIgnoreCase("Block")
+                                   ? "Sorry, there are no " + seatNumber + " seats left. Please choose another seat."
+                                   : "Sorry, seat " + seatNumber + " is not available. Please choose another seat.");
+            }
             else 
             {
-                // Output statement if bookTicket() returns false
+                // Output statement if no seat could be booked, the passenger can wait for one instead
                 System.out.println("Sorry, no seats available for the selected flight.");
+                System.out.print("Join the waitlist? (Yes/No): ");
+                if (scanner.next().equalsIgnoreCase("Yes"))
+                {
+                    int waiting = selectedFlight.joinWaitlist(passenger);
+                    System.out.println("Added to the waitlist. Passengers waiting: " + waiting);
+                    System.out.println("You will be booked automatically when a seat becomes free.");
+                }
             }
         } 
         else 
@@ -542,20 +8077,34 @@ public class Mark13
     // Function definition for displaying details of passengers of all flights
     private static void displayAllPassengers() 
     {
-        // Outer loop iterates for each flight
-        System.out.println("\nPassenger Details of all flights:");
-        for (Flight flight : flights) 
+        ListingWriter listing = ListingWriter.toConsole();
+        listing.line("\nPassenger Details of all flights:");
+        // The loop adds each flight's passengers to the listing
+        for (FlightSnapshot flight : inventory.snapshot().getFlights()) 
+        {
+            listing.manifest(flight);
+        }
+        listing.flush();
+    }
+
+    // Function definition for saving every flight's passenger list to a file
+    private static void exportManifests() 
+    {
+        System.out.print("Enter the path of the file to write: ");
+        Path file = Paths.get(scanner.next());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
         {
-            System.out.println("Flight Number: " + flight.getFlightNumber());
-            System.out.println("Source: " + flight.getSource());
-            System.out.println("Destination: " + flight.getDestination());
-            System.out.println("Passengers:");
-            // Inner loop iterates for each passenger
-            for (Passenger passenger : flight.getPassengers()) 
+            ListingWriter listing = new ListingWriter(writer);
+            for (FlightSnapshot flight : inventory.snapshot().getFlights())
             {
-                passenger.displayDetails();
+                listing.manifest(flight);
             }
-            System.out.println("-----------------------------------");
+            listing.flush();
+            System.out.println("Passenger lists written to " + file);
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            System.out.println("Could not write " + file + ": " + e.getMessage());
         }
     }
 
@@ -566,40 +8115,632 @@ public class Mark13
         System.out.print("Enter your passport number: ");
         String passportNumber = scanner.next();
 
-        // Outer loop iterates through each flight
-        for (Flight flight : flights) 
+        // The index already knows every booking made with this passport, so there is no need to scan the flights
+        List<Booking> bookings = index.findBookings(passportNumber);
+        if (bookings.isEmpty())
+        {
+            // If no such passport number is found then it displayes the appropriate statement
+            System.out.println("Passenger not found");
+            return;
+        }
+
+        // A passenger can hold tickets on more than one flight, so all of them are shown
+        for (Booking booking : bookings) 
+        {
+            System.out.println("Your ticket Details:");
+            System.out.println("");
+            System.out.println("Booking Reference: " + booking.getId());
+            System.out.println("Seat Number: " + booking.getSeatNumber());
+            System.out.println("Fare Paid: " + FareQuotes.format(booking.getFareCents()));
+            System.out.println("Passenger Details:");
+            booking.getPassenger().displayDetails();
+            System.out.println("Flight Details:");
+            booking.getFlight().displayDetails();
+            System.out.println("");
+        }
+    }
+
+    // Asks for a booking reference and the passport it was booked with, so one passenger can't change another's booking
+    // Returns null (after saying why) if they don't match
+    private static Booking findOwnBooking() 
+    {
+        System.out.print("Enter your booking reference: ");
+        if (!scanner.hasNextLong())
+        {
+            scanner.next();
+            System.out.println("Invalid booking reference.");
+            return null;
+        }
+        Booking booking = index.findBooking(scanner.nextLong());
+        System.out.print("Enter your passport number: ");
+        String passportNumber = FlightIndex.normalizePassport(scanner.next());
+        if (booking == null || !FlightIndex.normalizePassport(booking.getPassenger().getPassportNumber()).equals(passportNumber))
+        {
+            System.out.println("Booking not found");
+            return null;
+        }
+        return booking;
+    }
+
+    // Function definition for cancelling a booking, the seat goes to the first passenger on the waitlist if there is one
+    private static void cancelBooking() 
+    {
+        Booking booking = findOwnBooking();
+        if (booking == null)
+        {
+            return;
+        }
+        boolean cancelled;
+        try
+        {
+            cancelled = booking.getFlight().cancelBooking(booking);
+        }
+        catch (BookingNotSavedException e)
+        {
+            System.out.println("Sorry, " + e.getMessage() + ".");
+            return;
+        }
+        if (cancelled)
+        {
+            System.out.println("Booking " + booking.getId() + " on flight " + booking.getFlight().getFlightNumber() + " has been cancelled.");
+        }
+        else
+        {
+            System.out.println("Booking not found");
+        }
+    }
+
+    // Function definition for moving a booking to another seat or another flight
+    // The new seat is booked before the old one is given up, so the passenger never ends up with neither
+    private static void changeBooking() 
+    {
+        Booking booking = findOwnBooking();
+        if (booking == null)
+        {
+            return;
+        }
+        System.out.println("Current booking: flight " + booking.getFlight().getFlightNumber() + ", seat " + booking.getSeatNumber());
+        System.out.print("Enter the new flight number: ");
+        Flight newFlight = index.findFlight(scanner.next());
+        if (newFlight == null)
+        {
+            System.out.println("Invalid flight number.");
+            return;
+        }
+        System.out.print("Enter seat number (e.g. 12C) or Any: ");
+        String seatNumber = scanner.next();
+        if (seatNumber.equalsIgnoreCase("Any"))
+        {
+            seatNumber = null;
+        }
+        Booking changed;
+        try
+        {
+            changed = newFlight.rebook(booking, seatNumber);
+        }
+        catch (BookingConflictException e)
+        {
+            System.out.println("Sorry, " + e.getMessage() + ".");
+            return;
+        }
+        catch (BookingNotSavedException e)
+        {
+            System.out.println("Sorry, " + e.getMessage() + ". Your booking has not been changed.");
+            return;
+        }
+        if (changed != null)
+        {
+            System.out.println("--------------------------------");
+            System.out.println("Booking changed successfully!");
+            System.out.println("Booking Reference: " + changed.getId());
+            System.out.println("Seat Number: " + changed.getSeatNumber());
+            System.out.println("Fare Paid: " + FareQuotes.format(changed.getFareCents()));
+            System.out.println("Flight Details:");
+            newFlight.displayDetails();
+            System.out.println("\n--------------------------------");
+        }
+        else
+        {
+            System.out.println("Sorry, that seat is not available. Your booking has not been changed.");
+        }
+    }
+
+    // Function definition for booking a whole file of passengers at once, e.g. an upload from a travel agent
+    // Each line is flightNumber,name,age,gender,disability(Yes/No),passportNumber[,seatNumber]
+    // Either every passenger in the file is booked or none of them is
+    private static void bulkBooking() 
+    {
+        System.out.print("Enter the path of the booking file: ");
+        String path = scanner.next();
+
+        ArrayList<BookingRequest> requests = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path)))
         {
-            // Inner loop iterates through each passenger in the current instance of flight 
-            for (Passenger passenger : flight.getPassengers()) 
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
             {
-                // If passport number matches then details are displayed
-                if (passenger.getPassportNumber().equalsIgnoreCase(passportNumber)) 
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#"))
                 {
-                    System.out.println("Your ticket Details:");
-                    System.out.println("");
-                    System.out.println("Passenger Details:");
-                    passenger.displayDetails();
-                    System.out.println("Flight Details:");
-                    flight.displayDetails();
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                Flight flight = fields.length >= 6 ? findFlightByNumber(fields[0].trim()) : null;
+                if (flight == null)
+                {
+                    System.out.println("Line " + lineNumber + ": invalid flight number or missing fields. Nothing was booked.");
+                    return;
+                }
+                int age;
+                try
+                {
+                    age = Integer.parseInt(fields[2].trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    System.out.println("Line " + lineNumber + ": invalid age. Nothing was booked.");
                     return;
                 }
+                Passenger passenger = new Passenger(fields[1].trim(), age, fields[3].trim(),
+                                                    fields[4].trim().equalsIgnoreCase("Yes"), fields[5].trim());
+                String problem = PassengerValidator.check(passenger);
+                if (problem != null)
+                {
+                    System.out.println("Line " + lineNumber + ": " + problem + ". Nothing was booked.");
+                    return;
+                }
+                String seatNumber = fields.length > 6 && !fields[6].isBlank() ? fields[6].trim() : null;
+                requests.add(new BookingRequest(flight, passenger, seatNumber));
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read " + path + ": " + e.getMessage());
+            return;
+        }
+
+        if (requests.isEmpty())
+        {
+            System.out.println("The file has no bookings in it");
+            return;
+        }
+        List<Booking> bookings;
+        try
+        {
+            bookings = Flight.bookBatch(requests);
+        }
+        catch (BookingConflictException | BookingNotSavedException e)
+        {
+            System.out.println("Sorry, " + e.getMessage() + ". Nothing was booked.");
+            return;
+        }
+        if (bookings == null)
+        {
+            System.out.println("Sorry, not enough seats (or a requested seat is taken). Nothing was booked.");
+        }
+        else
+        {
+            System.out.println("Booked " + bookings.size() + " passengers successfully!");
+        }
+    }
+
+    // Function definition for searching direct and connecting flights between two airports
+    private static void searchRoutes() 
+    {
+        System.out.print("Enter source: ");
+        String source = scanner.next();
+        System.out.print("Enter destination: ");
+        String destination = scanner.next();
+        System.out.print("Enter earliest departure time (HH:mm): ");
+        String earliest = scanner.next();
+        System.out.print("Enter latest departure time (HH:mm): ");
+        String latest = scanner.next();
+
+        List<Itinerary> itineraries;
+        try
+        {
+            // The window is on the timetable's date, or today (tomorrow if it is already over). A window like 22:00 to 02:00 runs past midnight
+            ZoneId zone = Schedule.zoneOf(source);
+            LocalDate day = timetableDate != null ? timetableDate : LocalDate.now(zone);
+            long[] window = searchWindow(earliest, latest, day, zone);
+            if (timetableDate == null && window[1] < Instant.now().getEpochSecond())
+            {
+                window = searchWindow(earliest, latest, day.plusDays(1), zone);
             }
+            // Up to 2 stops i.e 3 flights
+            itineraries = getRouteFinder().search(source, destination, window[0], window[1], 2);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(e.getMessage());
+            System.out.println("Please enter times as HH:mm");
+            return;
+        }
+
+        if (itineraries.isEmpty())
+        {
+            System.out.println("No routes found");
+            return;
+        }
+        System.out.println("\nRoutes found:");
+        for (Itinerary itinerary : itineraries)
+        {
+            itinerary.displayDetails();
+        }
+    }
+
+    // The earliest and latest departure of a route search on the given day, the latest moved to the next day if it is before the earliest
+    private static long[] searchWindow(String earliest, String latest, LocalDate day, ZoneId zone) 
+    {
+        long from = Schedule.toEpochSecond(earliest, day, zone);
+        long to = Schedule.toEpochSecond(latest, day, zone);
+        if (to < from)
+        {
+            to = Schedule.toEpochSecond(latest, day.plusDays(1), zone);
+        }
+        return new long[] { from, to };
+    }
+
+    // Function definition for finding passengers by name, on one flight or all of them
+    // Part of a name is enough, and small typos are allowed
+    private static void searchPassengers() 
+    {
+        scanner.nextLine();
+        System.out.print("Enter name or part of it: ");
+        String name = scanner.nextLine();
+        System.out.print("Enter flight number, or All for every flight: ");
+        String flightNumber = scanner.next();
+        Flight flight = null;
+        if (!flightNumber.equalsIgnoreCase("All"))
+        {
+            flight = findFlightByNumber(flightNumber);
+            if (flight == null)
+            {
+                System.out.println("Invalid flight number.");
+                return;
+            }
+        }
+
+        List<Booking> bookings = names.search(name, flight, NAME_SEARCH_LIMIT);
+        if (bookings.isEmpty())
+        {
+            System.out.println("Passenger not found");
+            return;
+        }
+        StringBuilder listing = new StringBuilder(4096);
+        for (Booking booking : bookings)
+        {
+            listing.append("\nFlight: ").append(booking.getFlight().getFlightNumber())
+                   .append("  Seat: ").append(booking.getSeatNumber())
+                   .append("  Booking Reference: ").append(booking.getId()).append('\n');
+            booking.getPassenger().appendTo(listing);
+        }
+        if (bookings.size() == NAME_SEARCH_LIMIT)
+        {
+            listing.append("\nOnly the first ").append(NAME_SEARCH_LIMIT).append(" matches are shown\n");
+        }
+        System.out.print(listing);
+    }
+
+    // Function definition for the booking report, from the running totals so it doesn't go through every passenger
+    private static void displayBookingReport() 
+    {
+        StringBuilder report = new StringBuilder(4096);
+        analytics.appendReport(report);
+        System.out.print(report);
+    }
+
+    // Function definition for showing which aircraft flies which flights
+    private static void displayRotations() 
+    {
+        if (rotations == null)
+        {
+            System.out.println("No fleet was given, start with --fleet aircraft.csv to plan aircraft rotations");
+            return;
+        }
+        StringBuilder report = new StringBuilder(4096);
+        rotations.appendReport(report);
+        System.out.print(report);
+    }
+
+    // Reads the fleet and puts every flight it can on an aircraft. Returns false if the fleet file could not be read
+    private static boolean planRotations(Path file, int turnaroundMinutes) 
+    {
+        try
+        {
+            List<Aircraft> fleet = RotationPlanner.readFleet(file);
+            long start = System.nanoTime();
+            rotations = new RotationPlanner(turnaroundMinutes).plan(flights, fleet);
+            rotations.apply();
+            System.out.println("Put " + (rotations.getFlightCount() - rotations.getUnassignedCount()) + " of " + rotations.getFlightCount()
+                               + " flights on " + rotations.getAircraftUsed() + " aircraft in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return true;
+        }
+        catch (NoSuchFileException e)
+        {
+            System.out.println("Could not load the fleet " + file + ": file not found");
+            return false;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.out.println("Could not load the fleet " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Function definition for listing the next flights to leave an airport
+    private static void displayNextDepartures() 
+    {
+        System.out.print("Enter airport: ");
+        String airport = scanner.next();
+        System.out.print("Enter time (HH:mm) or Now: ");
+        String time = scanner.next();
+
+        ZoneId zone = Schedule.zoneOf(airport);
+        long after;
+        try
+        {
+            after = time.equalsIgnoreCase("Now") ? Instant.now().getEpochSecond()
+                  : Schedule.toEpochSecond(time, timetableDate != null ? timetableDate : LocalDate.now(zone), zone);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(e.getMessage());
+            System.out.println("Please enter the time as HH:mm");
+            return;
+        }
+
+        List<Flight> departures = getRouteFinder().nextDepartures(airport, after, 10);
+        if (departures.isEmpty())
+        {
+            System.out.println("No departures found");
+            return;
+        }
+        System.out.println("\nNext departures from " + airport + ":");
+        for (Flight flight : departures)
+        {
+            System.out.print("\nDeparture Date: " + LocalDate.ofInstant(Instant.ofEpochSecond(flight.getDepartureEpochSecond()), zone));
+            flight.displayDetails();
+        }
+        System.out.println("");
+    }
+
+    // Returns the route finder, building it from the current flights if needed
+    private static synchronized RouteFinder getRouteFinder() 
+    {
+        if (routeFinder == null)
+        {
+            routeFinder = new RouteFinder(flights);
         }
-        // If no such passport number is found then it displayes the appropriate statement
-        System.out.println("Passenger not found");
+        return routeFinder;
     }
 
-    // Function definition for finding the flight from the array list on the basis of flight number
+    // Function definition for finding the flight on the basis of flight number
     // Used to verify if entered flightnumber is valid and exists
     private static Flight findFlightByNumber(String flightNumber) 
     {
-        for (Flight flight : flights) 
+        return index.findFlight(flightNumber);
+    }
+
+    // Serves requests until the program is stopped
+    private static void runServer(int port) 
+    {
+        try (BookingServer server = new BookingServer(port, inventory, index))
+        {
+            server.setMetrics(metrics);
+            server.setNameIndex(names);
+            System.out.println("Airline Reservation System listening on port " + server.getPort());
+            server.serve();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not start the server: " + e.getMessage());
+        }
+        finally
+        {
+            closeJournal();
+        }
+    }
+
+    // Routes clients to the shards listed as host:port,host:port,...
+    private static void runRouter(int port, String shardList) 
+    {
+        List<InetSocketAddress> shards = new ArrayList<>();
+        for (String shard : shardList.split(","))
+        {
+            int colon = shard.lastIndexOf(':');
+            int shardPort = colon < 0 ? -1 : parsePort(shard.substring(colon + 1));
+            if (shardPort < 0)
+            {
+                System.out.println("Invalid shard address " + shard + ", expected host:port");
+                System.out.println(USAGE);
+                return;
+            }
+            shards.add(InetSocketAddress.createUnresolved(shard.substring(0, colon), shardPort));
+        }
+        try (ShardRouter router = new ShardRouter(port, shards))
+        {
+            System.out.println("Airline Reservation System routing port " + router.getPort() + " to " + shards.size() + " shards");
+            router.serve();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not start the router: " + e.getMessage());
+        }
+    }
+
+    // Parses i/N, or returns null if it isn't a valid shard
+    private static int[] parseShard(String value) 
+    {
+        String[] parts = value.split("/");
+        try
+        {
+            int shard = Integer.parseInt(parts[0]);
+            int shards = parts.length == 2 ? Integer.parseInt(parts[1]) : 0;
+            return shard >= 0 && shard < shards ? new int[] { shard, shards } : null;
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    // Runs the load generator against host:port
+    private static void runLoadGenerator(String target, int clients, int requests) 
+    {
+        int colon = target.lastIndexOf(':');
+        int port = colon < 0 ? -1 : parsePort(target.substring(colon + 1));
+        if (port < 0)
+        {
+            System.out.println("Invalid --loadgen, expected host:port");
+            System.out.println(USAGE);
+            return;
+        }
+        try
+        {
+            LoadGenerator.run(target.substring(0, colon), port, clients, requests);
+        }
+        catch (Exception e)
+        {
+            System.out.println("Load test failed: " + e);
+        }
+    }
+
+    // Loads every flight in the timetable file. Returns false if the file could not be read
+    // Only the flights that belong to the given shard are kept, which is all of them when there is one shard
+    private static boolean loadTimetable(Path file, int shard, int shards) 
+    {
+        try
+        {
+            List<Flight> loaded = new TimetableLoader().load(file);
+            flights.ensureCapacity(flights.size() + loaded.size() / shards);
+            for (Flight flight : loaded)
+            {
+                if (shards == 1 || ShardRouter.shardOf(flight.getFlightNumber(), shards) == shard)
+                {
+                    addFlight(flight);
+                }
+            }
+            return true;
+        }
+        catch (NoSuchFileException e)
+        {
+            System.out.println("Could not load the timetable " + file + ": file not found");
+            return false;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.out.println("Could not load the timetable " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Replays the saved bookings and starts saving new ones
+    // The journal is only handed to the flights after the replay, so restored bookings are not written a second time
+    private static void openJournal(File dataDirectory) 
+    {
+        BookingJournal opened = new BookingJournal(dataDirectory, flights, SNAPSHOT_INTERVAL);
+        try
+        {
+            long restored = opened.recover(index);
+            opened.start();
+            Flight.setBookingJournal(opened);
+            journal = opened;
+            if (restored > 0)
+            {
+                System.out.println("Restored " + restored + " bookings from " + dataDirectory);
+            }
+            if (opened.getOtherDepartures() > 0)
+            {
+                System.out.println("Left out " + opened.getOtherDepartures() + " saved bookings for other departures of their flights");
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not open the booking journal: " + e.getMessage());
+            System.out.println("Bookings made now will not be saved");
+        }
+    }
+
+    private static void closeJournal() 
+    {
+        if (journal == null)
+        {
+            return;
+        }
+        try
+        {
+            journal.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not close the booking journal: " + e.getMessage());
+        }
+    }
+
+    // Returns the value given after an option like "--data dir" on the command line, or defaultValue if it is not there
+    private static String optionValue(String[] args, String option, String defaultValue) 
+    {
+        for (int i = 0; i < args.length - 1; i++)
+        {
+            if (args[i].equals(option))
+            {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
+    // Returns the whole number given after an option, or defaultValue if the option is not there
+    // If it is not a number from min to max, says so with the usage and returns null
+    private static Integer intOption(String[] args, String option, int defaultValue, int min, int max) 
+    {
+        String value = optionValue(args, option, null);
+        try
         {
-            if (flight.getFlightNumber().equals(flightNumber)) 
+            int number = value == null ? defaultValue : Integer.parseInt(value);
+            if (number >= min && number <= max)
             {
-                return flight;
+                return number;
             }
         }
+        catch (NumberFormatException e)
+        {
+            // Said below, the same as a number out of range
+        }
+        System.out.println("Invalid " + option + " " + value + ", expected a whole number from " + min + " to " + max);
+        System.out.println(USAGE);
         return null;
     }
+
+    // The port number, or -1 if it isn't one
+    private static int parsePort(String value) 
+    {
+        try
+        {
+            int port = Integer.parseInt(value);
+            return port >= 0 && port <= 65535 ? port : -1;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    // Returns true if the option was given, for options that don't take a value
+    private static boolean hasOption(String[] args, String option) 
+    {
+        return Arrays.asList(args).contains(option);
+    }
+
+    // Adds a flight to the flights array list and to the index
+    public static void addFlight(Flight flight) 
+    {
+        flights.add(flight);
+        index.addFlight(flight);
+        analytics.addFlight(flight);
+        inventory.addFlight(flight);
+        routeFinder = null;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package mark13;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Flight.bookTicket from one thread and from several, the JMH version of bookTicket and bookTicketThreads in Benchmarks
+// A flight can only be booked until it is full, so each invocation books all of the fleet's passengers into fresh flights
+// made beforehand (not timed). The time reported is for the whole fleet: divide by fleetSize * passengersPerFlight for one booking
+// Every booking goes through Flight's static hooks, so those are reset before each invocation too (see Benchmarks.resetGlobalState)
+// and no listener, guard or journal left by an earlier benchmark in the fork is timed along with it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BookingBenchmarks 
+{
+    @Param({ "1000", "10000" })
+    public int fleetSize;
+
+    @Param({ "10", "100" })
+    public int passengersPerFlight;
+
+    private ArrayList<Passenger> passengers;
+    private ArrayList<Flight> flights;
+    private ExecutorService pool;
+    private int threads;
+
+    @Setup(Level.Trial)
+    public void buildFleet() 
+    {
+        passengers = Benchmarks.buildFleet(fleetSize, passengersPerFlight).passengers;
+        threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyFlights() 
+    {
+        Benchmarks.resetGlobalState();
+        flights = Benchmarks.emptyFlights(fleetSize, passengersPerFlight);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopPool() 
+    {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public long bookTicket() 
+    {
+        return bookShare(0, 1);
+    }
+
+    // The same passengers split between the pool's threads, all booking into the same flights at once
+    @Benchmark
+    public long bookTicketThreads() throws Exception 
+    {
+        List<Callable<Long>> shares = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            int first = t;
+            shares.add(() -> bookShare(first, threads));
+        }
+        long booked = 0;
+        for (Future<Long> share : pool.invokeAll(shares))
+        {
+            booked += share.get();
+        }
+        return booked;
+    }
+
+    // Books every step'th passenger from first on, spread round the flights
+    private long bookShare(int first, int step) 
+    {
+        long booked = 0;
+        for (int i = first; i < passengers.size(); i += step)
+        {
+            booked += flights.get(i % flights.size()).bookTicket(passengers.get(i)) ? 1 : 0;
+        }
+        return booked;
+    }
+}
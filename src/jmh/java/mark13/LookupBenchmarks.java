@@ -0,0 +1,53 @@
+package mark13;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Finding a flight by number and a passenger's bookings by passport, the JMH version of findFlightByNumber and
+// passportLookup in Benchmarks. Each call looks up the next of 65536 keys picked at random, so it doesn't just hit the same few
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LookupBenchmarks 
+{
+    @Param({ "1000", "10000" })
+    public int fleetSize;
+
+    @Param({ "10", "100" })
+    public int passengersPerFlight;
+
+    private FlightIndex index;
+    private String[] numbers;
+    private String[] passports;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void buildFleet() 
+    {
+        Benchmarks.Fleet fleet = Benchmarks.buildFleet(fleetSize, passengersPerFlight);
+        index = fleet.index;
+        numbers = Benchmarks.randomSample(fleet.flights.size(), i -> fleet.flights.get(i).getFlightNumber());
+        // typed in lower case, the way displayTicketDetails gets them
+        passports = Benchmarks.randomSample(fleet.passengers.size(), i -> fleet.passengers.get(i).getPassportNumber().toLowerCase(Locale.ROOT));
+    }
+
+    @Benchmark
+    public Flight findFlightByNumber() 
+    {
+        next = (next + 1) & (numbers.length - 1);
+        return index.findFlight(numbers[next]);
+    }
+
+    @Benchmark
+    public List<Booking> passportLookup() 
+    {
+        next = (next + 1) & (passports.length - 1);
+        return index.findBookings(passports[next]);
+    }
+}
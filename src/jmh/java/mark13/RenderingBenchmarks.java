@@ -0,0 +1,55 @@
+package mark13;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Passenger.toString and the flight listing, the JMH version of passengerToString and flightListing in Benchmarks
+// passengerToString renders one passenger per call; flightListing lists the whole fleet the way the menu does, into a writer
+// that throws the output away, so divide it by fleetSize for one flight
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RenderingBenchmarks 
+{
+    @Param({ "1000", "10000" })
+    public int fleetSize;
+
+    @Param({ "10", "100" })
+    public int passengersPerFlight;
+
+    private ArrayList<Flight> flights;
+    private ArrayList<Passenger> passengers;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void buildFleet() 
+    {
+        Benchmarks.Fleet fleet = Benchmarks.buildFleet(fleetSize, passengersPerFlight);
+        flights = fleet.flights;
+        passengers = fleet.passengers;
+    }
+
+    @Benchmark
+    public String passengerToString() 
+    {
+        next = next + 1 < passengers.size() ? next + 1 : 0;
+        return passengers.get(next).toString();
+    }
+
+    @Benchmark
+    public void flightListing() 
+    {
+        ListingWriter listing = new ListingWriter(Writer.nullWriter());
+        for (Flight flight : flights)
+        {
+            listing.flight(flight);
+        }
+        listing.flush();
+    }
+}